@@ -1,11 +1,21 @@
 import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import edu.princeton.cs.algs4.Queue;
 
 public class BHTree {
 
     // threshold value
     private final double Theta = 0.5;
 
+    private final int bucketSize;   // maximum number of bodies in an external node
+
     private Body body;     // body or aggregate body stored in this node
+    private Body center;   // aggregate body of this node, updated in place
+    private Body[] bucket; // bodies stored in this node if it is external
+    private int n;         // number of bodies in the bucket
+    private boolean split; // internal node, its bodies are in the children
     private Quad quad;     // square region that the tree represents
     private BHTree NW;     // tree representing northwest quadrant
     private BHTree NE;     // tree representing northeast quadrant
@@ -20,8 +30,24 @@ public class BHTree {
      * @param q the quadrant this node is contained within
      */
     public BHTree(Quad q) {
+        this(q, 1);
+    }
+
+    /**
+     * Constructor: creates a new Barnes-Hut tree with no bodies, whose
+     * external nodes hold up to bucketSize bodies before being subdivided.
+     *
+     * @param q          the quadrant this node is contained within
+     * @param bucketSize the maximum number of bodies in an external node
+     */
+    public BHTree(Quad q, int bucketSize) {
+        if (bucketSize < 1)
+            throw new IllegalArgumentException("bucket size must be positive");
+        this.bucketSize = bucketSize;
         this.quad = q;
         this.body = null;
+        this.bucket = null;
+        this.n = 0;
         this.NW = null;
         this.NE = null;
         this.SW = null;
@@ -37,33 +63,89 @@ public class BHTree {
         // if this node does not contain a body, put the new body b here
         if (body == null) {
             body = b;
+            if (bucket == null)
+                bucket = new Body[bucketSize];
+            bucket[n++] = b;
             return;
         }
   
         // internal node
         if (! isExternal()) {
             // update the center-of-mass and total mass
-            body = body.plus(b);
+            aggregate(b);
         
             // recursively insert Body b into the appropriate quadrant
             putBody(b);
         }
 
-        // external node
+        // external node with room left in its bucket
+        else if (n < bucketSize) {
+            bucket[n++] = b;
+
+            // update the center-of-mass and total mass
+            aggregate(b);
+        }
+
+        // full external node
         else {
-            // subdivide the region further by creating four children
-            NW = new BHTree(quad.NW());
-            NE = new BHTree(quad.NE());
-            SE = new BHTree(quad.SE());
-            SW = new BHTree(quad.SW());
-
-            // recursively insert both this body and Body b into the appropriate quadrant
-            putBody(this.body);
+            // subdivide the region further, with the four children of an
+            // earlier build (left empty by clear()) or new ones
+            if (NW == null) {
+                NW = new BHTree(quad.NW(), bucketSize);
+                NE = new BHTree(quad.NE(), bucketSize);
+                SE = new BHTree(quad.SE(), bucketSize);
+                SW = new BHTree(quad.SW(), bucketSize);
+            }
+            split = true;
+
+            // recursively insert the bucket and Body b into the appropriate quadrant
+            for (int i = 0; i < n; i++)
+                putBody(bucket[i]);
             putBody(b);
+            Arrays.fill(bucket, 0, n, null);
+            n = 0;
 
             // update the center-of-mass and total mass
-            body = body.plus(b);
+            aggregate(b);
+        }
+    }
+
+
+    /**
+     * Adds b to the aggregate body of this node, in place once the node
+     * holds more than one body.
+     */
+    private void aggregate(Body b) {
+        if (center == null)
+            center = new Body(0.0, 0.0, 0.0, 0.0, 0.0, null, -1);
+        center.setToSum(body, b);
+        body = center;
+    }
+
+
+    /**
+     * Empties the tree, to insert the bodies again: its nodes, with their
+     * buckets and aggregate bodies, are kept for the next build, except the
+     * subtrees below the nodes that were external in the last build.
+     */
+    public void clear() {
+        if (split) {
+            NW.clear();
+            NE.clear();
+            SW.clear();
+            SE.clear();
+        }
+        else {
+            NW = null;
+            NE = null;
+            SW = null;
+            SE = null;
         }
+        if (bucket != null)
+            Arrays.fill(bucket, 0, n, null);
+        body = null;
+        n = 0;
+        split = false;
     }
 
 
@@ -71,13 +153,13 @@ public class BHTree {
      * Inserts a body into the appropriate quadrant.
      */ 
     private void putBody(Body b) {
-        if (b.in(quad.NW()))
+        if (b.in(NW.quad))
             NW.insert(b);
-        else if (b.in(quad.NE()))
+        else if (b.in(NE.quad))
             NE.insert(b);
-        else if (b.in(quad.SE()))
+        else if (b.in(SE.quad))
             SE.insert(b);
-        else if (b.in(quad.SW()))
+        else if (b.in(SW.quad))
             SW.insert(b);
     }
 
@@ -86,8 +168,8 @@ public class BHTree {
      * Returns true iff this tree node is external.
      */
     private boolean isExternal() {
-        // a node is external iff all four children are null
-        return (NW == null && NE == null && SW == null && SE == null);
+        // a node is external iff it was not subdivided (since the last clear())
+        return !split;
     }
 
 
@@ -101,8 +183,11 @@ public class BHTree {
             return;
 
         // if the current node is external, update net force acting on b
-        if (isExternal()) 
-            b.addForce(body);
+        if (isExternal()) {
+            for (int i = 0; i < n; i++)
+                if (bucket[i] != b)
+                    b.addForce(bucket[i]);
+        }
  
         // for internal nodes
         else {
@@ -128,6 +213,272 @@ public class BHTree {
     }
 
 
+    /**
+     * Adds to the force acting on Body b the short-range part of the
+     * TreePM force of split scale rs from the bodies in the invoking tree,
+     * ignoring the quadrants farther than rcut from b.
+     */
+    public void updateShortRangeForce(Body b, double rs, double rcut) {
+
+        if (body == null || b.equals(body))
+            return;
+
+        // the whole quadrant is beyond the cutoff
+        if (quad.distanceTo(b.rx, b.ry) > rcut)
+            return;
+
+        if (isExternal()) {
+            for (int i = 0; i < n; i++)
+                if (bucket[i] != b)
+                    b.addForce(bucket[i], PMSolver.shortRangeFactor(b.distanceTo(bucket[i]), rs));
+        }
+
+        else {
+            double s = quad.length();
+            double d = body.distanceTo(b);
+            if ((s / d) < Theta)
+                b.addForce(body, PMSolver.shortRangeFactor(d, rs));
+            else {
+                NW.updateShortRangeForce(b, rs, rcut);
+                NE.updateShortRangeForce(b, rs, rcut);
+                SW.updateShortRangeForce(b, rs, rcut);
+                SE.updateShortRangeForce(b, rs, rcut);
+            }
+        }
+    }
+
+
+    /**
+     * Approximates the net force acting on every body in the invoking
+     * Barnes-Hut tree, and updates their forces accordingly.
+     * <p>
+     * Instead of one traversal per body, the tree is walked once per
+     * external node: the walk builds the interaction list of the whole
+     * bucket, opening a node unless it is far enough from the bounding
+     * box of the bucket (hence from every body in it), then the list is
+     * applied to each body of the bucket.
+     */
+    public void updateForces() {
+        updateForces(new ArrayList<Body>());
+    }
+
+
+    /**
+     * Same as updateForces(), building the interaction lists in buffer,
+     * so that a caller computing forces at every step can reuse it.
+     *
+     * @param buffer the list used (and cleared) for the interaction lists
+     */
+    public void updateForces(ArrayList<Body> buffer) {
+        updateForces(this, buffer);
+    }
+
+
+    /**
+     * Applies the forces on the bodies of every external node below this one.
+     */
+    private void updateForces(BHTree root, ArrayList<Body> list) {
+        if (body == null)
+            return;
+
+        if (! isExternal()) {
+            NW.updateForces(root, list);
+            NE.updateForces(root, list);
+            SW.updateForces(root, list);
+            SE.updateForces(root, list);
+            return;
+        }
+
+        // bounding box of the bodies in the bucket
+        double xlo = bucket[0].rx, xhi = bucket[0].rx;
+        double ylo = bucket[0].ry, yhi = bucket[0].ry;
+        for (int i = 1; i < n; i++) {
+            xlo = Math.min(xlo, bucket[i].rx);
+            xhi = Math.max(xhi, bucket[i].rx);
+            ylo = Math.min(ylo, bucket[i].ry);
+            yhi = Math.max(yhi, bucket[i].ry);
+        }
+
+        // one interaction list for the whole bucket
+        list.clear();
+        root.interactions(this, xlo, xhi, ylo, yhi, list);
+
+        for (int i = 0; i < n; i++) {
+            Body b = bucket[i];
+            b.addForces(list);
+
+            // bodies sharing the bucket interact directly
+            for (int j = 0; j < n; j++)
+                if (j != i)
+                    b.addForce(bucket[j]);
+        }
+    }
+
+
+    /**
+     * Adds to list the bodies and aggregate bodies acting on every body
+     * of the external node leaf, whose bounding box is [xlo, xhi] x [ylo, yhi].
+     */
+    private void interactions(BHTree leaf, double xlo, double xhi, double ylo, double yhi, ArrayList<Body> list) {
+        if (body == null || this == leaf)
+            return;
+
+        // width of region represented by this node
+        double s = quad.length();
+
+        // distance between this node's center-of-mass and the closest point of the box
+        double dx = Math.max(0.0, Math.max(xlo - body.rx, body.rx - xhi));
+        double dy = Math.max(0.0, Math.max(ylo - body.ry, body.ry - yhi));
+
+        // far away from all the bucket, conservative version of updateForce's test
+        // (s / d < Theta, squared); a far external node also counts as one
+        // aggregate body instead of n
+        if (s*s < Theta*Theta * (dx*dx + dy*dy))
+            list.add(body);
+        else if (isExternal()) {
+            for (int i = 0; i < n; i++)
+                list.add(bucket[i]);
+        }
+        else {
+            NW.interactions(leaf, xlo, xhi, ylo, yhi, list);
+            NE.interactions(leaf, xlo, xhi, ylo, yhi, list);
+            SW.interactions(leaf, xlo, xhi, ylo, yhi, list);
+            SE.interactions(leaf, xlo, xhi, ylo, yhi, list);
+        }
+    }
+
+
+    /*
+     * Spatial queries. They use the quadrants to prune the search and the
+     * aggregate bodies to answer for whole subtrees, so they see the bodies
+     * where they were when the tree was built; build the tree from the
+     * current positions before querying a running simulation.
+     */
+
+    /**
+     * Returns the bodies of the tree inside the rectangle [xlo, xhi] x [ylo, yhi].
+     *
+     * @param xlo minimum x-coordinate of the rectangle
+     * @param xhi maximum x-coordinate of the rectangle
+     * @param ylo minimum y-coordinate of the rectangle
+     * @param yhi maximum y-coordinate of the rectangle
+     * @return    the bodies in the rectangle
+     */
+    public Iterable<Body> range(double xlo, double xhi, double ylo, double yhi) {
+        Queue<Body> found = new Queue<Body>();
+        range(xlo, xhi, ylo, yhi, found);
+        return found;
+    }
+
+    private void range(double xlo, double xhi, double ylo, double yhi, Queue<Body> found) {
+        if (body == null || !quad.intersects(xlo, xhi, ylo, yhi))
+            return;
+
+        if (isExternal()) {
+            for (int i = 0; i < n; i++) {
+                Body b = bucket[i];
+                if (b.rx >= xlo && b.rx <= xhi && b.ry >= ylo && b.ry <= yhi)
+                    found.enqueue(b);
+            }
+            return;
+        }
+
+        NW.range(xlo, xhi, ylo, yhi, found);
+        NE.range(xlo, xhi, ylo, yhi, found);
+        SW.range(xlo, xhi, ylo, yhi, found);
+        SE.range(xlo, xhi, ylo, yhi, found);
+    }
+
+
+    /**
+     * Returns the k bodies of the tree nearest to (x, y), closest first.
+     *
+     * @param x x-coordinate of the point
+     * @param y y-coordinate of the point
+     * @param k the number of bodies wanted
+     * @return  the (at most) k nearest bodies
+     */
+    public Body[] nearest(double x, double y, int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be positive");
+
+        // the k best candidates so far, farthest on top
+        PriorityQueue<Body> best = new PriorityQueue<Body>(k, (a, b) ->
+                Double.compare(distance(b, x, y), distance(a, x, y)));
+        nearest(x, y, k, best);
+
+        Body[] result = new Body[best.size()];
+        for (int i = result.length - 1; i >= 0; i--)
+            result[i] = best.remove();
+        return result;
+    }
+
+    private void nearest(double x, double y, int k, PriorityQueue<Body> best) {
+        if (body == null)
+            return;
+
+        // this whole quadrant is farther than the current k-th candidate
+        if (best.size() == k && quad.distanceTo(x, y) > distance(best.peek(), x, y))
+            return;
+
+        if (isExternal()) {
+            for (int i = 0; i < n; i++) {
+                best.add(bucket[i]);
+                if (best.size() > k)
+                    best.remove();
+            }
+            return;
+        }
+
+        // visit the closest quadrants first to shrink the candidate radius early
+        BHTree[] children = { NW, NE, SW, SE };
+        for (int i = 1; i < children.length; i++) {
+            BHTree c = children[i];
+            int j = i;
+            for (; j > 0 && children[j-1].quad.distanceTo(x, y) > c.quad.distanceTo(x, y); j--)
+                children[j] = children[j-1];
+            children[j] = c;
+        }
+        for (BHTree c : children)
+            c.nearest(x, y, k, best);
+    }
+
+    private static double distance(Body b, double x, double y) {
+        double dx = b.rx - x;
+        double dy = b.ry - y;
+        return Math.sqrt(dx*dx + dy*dy);
+    }
+
+
+    /**
+     * Returns the total mass of the bodies of the tree within distance r of (x, y).
+     *
+     * @param x x-coordinate of the center
+     * @param y y-coordinate of the center
+     * @param r the radius of the disc
+     * @return  the mass inside the disc
+     */
+    public double massWithin(double x, double y, double r) {
+        if (body == null || quad.distanceTo(x, y) > r)
+            return 0.0;
+
+        // quadrant entirely inside the disc: the aggregate body has its mass
+        if (quad.maxDistanceTo(x, y) <= r)
+            return body.mass();
+
+        if (isExternal()) {
+            double m = 0.0;
+            for (int i = 0; i < n; i++)
+                if (distance(bucket[i], x, y) <= r)
+                    m += bucket[i].mass();
+            return m;
+        }
+
+        return NW.massWithin(x, y, r) + NE.massWithin(x, y, r)
+             + SW.massWithin(x, y, r) + SE.massWithin(x, y, r);
+    }
+
+
     /**
      * Returns a string representation of the Barnes-Hut tree
      * in which spaces represent external nodes, and asterisks
@@ -1,11 +1,12 @@
 
 import java.awt.Color;
+import java.util.ArrayList;
 import edu.princeton.cs.algs4.*;
 
 public class Body {
 
-    // gravitational constant
-    private static final double G = 6.67e-11;
+    // gravitational constant, shared with the solvers and generators of this package
+    static final double G = 6.67e-11;
 
     public double rx, ry;       // position
     public double vx, vy;       // velocity
@@ -16,9 +17,13 @@ public class Body {
     private static final double INFINITY = Double.POSITIVE_INFINITY;
     private static Color defaultColor = Color.BLACK;
     private static boolean useRadiusUpscaling = false;
+    private static boolean useMerging = false;
 
     public int count;
-    public final double radius;
+    public double radius;
+    private boolean merged;      // absorbed by another body
+    private double pvx, pvy;     // velocity at the last collision prediction
+    private double predictedAt;  // time of the last collision prediction
 
     public Body() {
         this.count = 0;
@@ -75,6 +80,54 @@ public class Body {
         return count;
     }
 
+    /**
+     * Invalidates the pending collision events of this body, as if it had collided.
+     */
+    public void invalidate() {
+        count++;
+    }
+
+    /**
+     * Records the current velocity as the one collisions were predicted with at time t.
+     *
+     * @param t the simulation time of the prediction
+     */
+    public void markPredicted(double t) {
+        pvx = vx;
+        pvy = vy;
+        predictedAt = t;
+    }
+
+    /**
+     * @return the simulation time of the last markPredicted()
+     */
+    public double predictedAt() {
+        return predictedAt;
+    }
+
+    /**
+     * @return the magnitude of the velocity change since markPredicted()
+     */
+    public double velocityChange() {
+        double dvx = vx - pvx;
+        double dvy = vy - pvy;
+        return Math.sqrt(dvx*dvx + dvy*dvy);
+    }
+
+    /**
+     * @return the mass of this body
+     */
+    public double mass() {
+        return mass;
+    }
+
+    /**
+     * @return the color of this body
+     */
+    public Color color() {
+        return color;
+    }
+
     // (lzj)
     public double timeToHit(Body that){
         if (this == that) {
@@ -87,7 +140,7 @@ public class Body {
 
         // dot product of vector dr and vector dv; predicts the existence of finite time to collide
         double dvdr = dvx * dx + dvy * dy;
-        if (dvdr > 0) {
+        if (dvdr >= 0) {
             return INFINITY;        // I know this physics is weird
         }
 
@@ -115,6 +168,23 @@ public class Body {
         // we ignore the other solution (Why ? because there can be two collisons in Mathematics; think about it, try it)
     }
 
+    /**
+     * Returns true if the invoking Body and that overlap, whatever their
+     * relative velocity.
+     *
+     * @param that the other body
+     * @return     true iff the discs of this and that intersect
+     */
+    public boolean overlaps(Body that) {
+        if (this == that) {
+            return false;
+        }
+        double dx = that.rx - this.rx;
+        double dy = that.ry - this.ry;
+        double sigma = that.radius + this.radius;
+        return dx * dx + dy * dy < sigma * sigma;
+    }
+
     public double timeToHitHorizontalWall(double ymin, double ymax) {
         if (vy < 0) {
             return (radius - ry - ymin) / vy;
@@ -142,15 +212,16 @@ public class Body {
         double dvy = that.vy - this.vy;
         // dot product of dv vector and dr vector
         double dvdr = dvx * dx + dvy * dy;
-        // sum of the radii of this and that particle
-        double sigma = this.radius + that.radius;
+        // distance between the centers: the sum of the radii at contact, less
+        // if the bodies overlap (e.g. drifted within the re-prediction tolerance)
+        double dist = Math.sqrt(dx * dx + dy * dy);
 
         // total magnitude of impulse exchanged on collision
-        double j = 2 * dvdr * this.mass * that.mass / ((this.mass + that.mass) * sigma);
+        double j = 2 * dvdr * this.mass * that.mass / ((this.mass + that.mass) * dist);
 
         // x and y components of the Impulse 
-        double jx = j * dx / sigma;
-        double jy = j * dy / sigma;
+        double jx = j * dx / dist;
+        double jy = j * dy / dist;
 
         // update velocity according to momentum change given by impulse
         this.vx += jx / this.mass;
@@ -163,6 +234,43 @@ public class Body {
         that.count++;
     }
 
+    /**
+     * Coalesces Body that into the invoking Body (perfectly inelastic collision).
+     * Mass and momentum are conserved, the result sits at the pair's
+     * center-of-mass and the radii are combined by area.
+     * Body that is marked as merged and must not be simulated any further.
+     *
+     * @param that the body absorbed by this Body
+     */
+    public void merge(Body that) {
+        double m = this.mass + that.mass;
+
+        // center-of-mass position and momentum-conserving velocity
+        this.rx = (this.rx * this.mass + that.rx * that.mass) / m;
+        this.ry = (this.ry * this.mass + that.ry * that.mass) / m;
+        this.vx = (this.vx * this.mass + that.vx * that.mass) / m;
+        this.vy = (this.vy * this.mass + that.vy * that.mass) / m;
+
+        // area of the merged disc is the sum of both areas
+        this.radius = Math.sqrt(this.radius * this.radius + that.radius * that.radius);
+        if (that.mass > this.mass) {
+            this.color = that.color;
+        }
+        this.mass = m;
+        that.merged = true;
+
+        // update collision counts so pending events of both become invalid
+        this.count++;
+        that.count++;
+    }
+
+    /**
+     * @return true if this body has been absorbed by another one
+     */
+    public boolean isMerged() {
+        return merged;
+    }
+
     public void bounceOffVerticalWall() {
         this.vx = -this.vx;
         count++;
@@ -194,6 +302,20 @@ public class Body {
         return useRadiusUpscaling;
     }
 
+    /**
+     * Selects what happens when two bodies collide: an elastic bounce
+     * (default) or a merge of both bodies into one.
+     *
+     * @param yes true to merge colliding bodies
+     */
+    public static void useMerging(boolean yes) {
+        useMerging = yes;
+    }
+
+    public static boolean mergingEnabled() {
+        return useMerging;
+    }
+
     /**
      * Returns the Euclidean distance between the invoking Body and b.
      *
@@ -233,6 +355,61 @@ public class Body {
         a.fy += F * dy / dist;
     }
 
+    /**
+     * Adds the forces exerted by all the bodies of list to the net force
+     * acting on the invoking Body, like addForce() on each of them but in
+     * one loop, with one division per body and the force kept in registers.
+     *
+     * @param list the bodies whose force on this body to calculate
+     */
+    public void addForces(ArrayList<Body> list) {
+        double EPS = 0.0000001;      // softening parameter
+
+        double ax = fx, ay = fy;
+        for (int i = 0; i < list.size(); i++) {
+            Body b = list.get(i);
+            double dx = b.rx - rx;
+            double dy = b.ry - ry;
+            double dist2 = dx*dx + dy*dy;
+            double F = (G * mass * b.mass) / ((dist2 + EPS*EPS) * Math.sqrt(dist2));
+            ax += F * dx;
+            ay += F * dy;
+        }
+        fx = ax;
+        fy = ay;
+    }
+
+    /**
+     * Adds scale times the force exerted by b to the net force acting on
+     * the invoking Body, e.g. the short-range part of a TreePM force.
+     *
+     * @param b     the body whose force on this body to calculate
+     * @param scale the fraction of the force to add
+     */
+    public void addForce(Body b, double scale) {
+        Body a = this;
+
+        double EPS = 0.0000001;      // softening parameter
+
+        double dx = b.rx - a.rx;
+        double dy = b.ry - a.ry;
+        double dist = Math.sqrt(dx*dx + dy*dy);
+        double F = scale * (G * a.mass * b.mass) / (dist*dist + EPS*EPS);
+        a.fx += F * dx / dist;
+        a.fy += F * dy / dist;
+    }
+
+    /**
+     * Adds (fx, fy) to the net force acting on the invoking Body.
+     *
+     * @param fx the x-component of the force
+     * @param fy the y-component of the force
+     */
+    public void addForce(double fx, double fy) {
+        this.fx += fx;
+        this.fy += fy;
+    }
+
     public void draw() {
         StdDraw.setPenColor(color);
         StdDraw.filledCircle(rx, ry, radius);
@@ -267,4 +444,25 @@ public class Body {
         /// (lzj) TODO: radius = -1 means aggregate body !!!!! check here if mistakes exist !!!!!
         return new Body(x, y, a.vx, b.vx, m, a.color, -1);
     }
+
+    /**
+     * Same as a.plus(b), but stores the aggregate in the invoking body
+     * instead of a new one (a may be the invoking body itself).
+     *
+     * @param a the first body to aggregate
+     * @param b the second body to aggregate
+     */
+    public void setToSum(Body a, Body b) {
+        double m = a.mass + b.mass;
+        double x = (a.rx * a.mass + b.rx * b.mass) / m;
+        double y = (a.ry * a.mass + b.ry * b.mass) / m;
+
+        this.vx = a.vx;
+        this.vy = b.vx;
+        this.color = a.color;
+        this.rx = x;
+        this.ry = y;
+        this.mass = m;
+        this.radius = -1;
+    }
 }
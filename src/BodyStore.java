@@ -0,0 +1,542 @@
+import java.awt.Color;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Off-heap state of the bodies of a simulation, in a memory-mapped file
+ * (or in direct memory when no file is needed).
+ * <p>
+ * Each body is a fixed size record of little-endian 8 byte slots
+ * (rx, ry, vx, vy, mass, radius, rgb, count, then the working state fx, fy,
+ * the velocity and time of the last collision prediction and the merged
+ * flag). The records are split in segments of SEGMENT bodies so the store
+ * is not limited by the 2GB size of a single buffer, nor by the heap.
+ * <p>
+ * A file starts with a HEADER byte header holding the magic number, the
+ * record size, the capacity, the number of bodies and the map radius, so
+ * NBodySystem (load=file) and external tools can read the state in place.
+ * <p>
+ * A simulation can run on the store itself: the kernels below are the Body
+ * methods of the same name applied to the i-th record, used by Integrator,
+ * TreeSolver (through a StoreTree) and IncrementEvent. Heap bodies can
+ * also be copied in with write() and back out with read().
+ */
+public class BodyStore {
+
+    public static final long MAGIC = 0x4e424f4459535431L;     // "NBODYST1"
+    public static final int HEADER = 64;                       // header size in bytes
+    public static final int RECORD = 112;                      // record size in bytes
+    public static final int SEGMENT = 1 << 20;                 // bodies per segment
+    private static final int SHIFT = 20;                       // log2(SEGMENT)
+
+    // slot offsets inside a record
+    private static final int RX = 0, RY = 8, VX = 16, VY = 24;
+    private static final int MASS = 32, RADIUS = 40, RGB = 48, COUNT = 56;
+    private static final int FX = 64, FY = 72, PVX = 80, PVY = 88, PREDICTED = 96, MERGED = 104;
+
+    private static final double INFINITY = Double.POSITIVE_INFINITY;
+    private static final double EPS = 0.0000001;              // softening parameter, as in Body
+
+    private final ByteBuffer header;       // null when not file backed
+    private final ByteBuffer[] segments;   // records, SEGMENT bodies per buffer
+    private final int capacity;            // maximum number of bodies
+    private int size;                      // number of bodies
+    private double mapRadius;              // side of the universe
+
+    private BodyStore(ByteBuffer header, ByteBuffer[] segments, int capacity, int size, double mapRadius) {
+        this.header = header;
+        this.segments = segments;
+        this.capacity = capacity;
+        this.size = size;
+        this.mapRadius = mapRadius;
+    }
+
+    /**
+     * Allocates an off-heap (direct memory) store for n bodies.
+     *
+     * @param n         the capacity of the store
+     * @param mapRadius the side of the universe of the bodies
+     * @return          the new store, holding no body
+     */
+    public static BodyStore allocate(int n, double mapRadius) {
+        ByteBuffer[] segments = new ByteBuffer[segmentsFor(n)];
+        for (int s = 0; s < segments.length; s++) {
+            int bodies = Math.min(SEGMENT, n - s * SEGMENT);
+            segments[s] = ByteBuffer.allocateDirect(bodies * RECORD).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new BodyStore(null, segments, n, 0, mapRadius);
+    }
+
+    /**
+     * Creates (or overwrites) a file of the given path and maps a store
+     * for n bodies onto it.
+     *
+     * @param path      the file backing the store
+     * @param n         the capacity of the store
+     * @param mapRadius the side of the universe of the bodies
+     * @return          the new store, holding no body
+     * @throws IOException if the file can't be created or mapped
+     */
+    public static BodyStore map(String path, int n, double mapRadius) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.setLength(HEADER + (long) n * RECORD);
+            BodyStore store = map(file.getChannel(), FileChannel.MapMode.READ_WRITE, n, 0, mapRadius);
+            store.header.putLong(0, MAGIC);
+            store.header.putInt(8, RECORD);
+            store.header.putInt(12, n);
+            store.header.putInt(16, 0);
+            store.header.putDouble(24, mapRadius);
+            return store;
+        }
+    }
+
+    /**
+     * Maps a store previously written to the given path, read-only.
+     *
+     * @param path the file backing the store
+     * @return     the store, holding the bodies recorded in the file
+     * @throws IOException if the file can't be mapped or is not a body store
+     */
+    public static BodyStore open(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            FileChannel channel = file.getChannel();
+            ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            if (head.getLong(0) != MAGIC || head.getInt(8) != RECORD) {
+                throw new IOException(path + " is not a body store");
+            }
+            return map(channel, FileChannel.MapMode.READ_ONLY, head.getInt(12), head.getInt(16), head.getDouble(24));
+        }
+    }
+
+    // maps the header and the segments of a file holding n records
+    private static BodyStore map(FileChannel channel, FileChannel.MapMode mode, int n, int size, double mapRadius)
+            throws IOException {
+        MappedByteBuffer header = channel.map(mode, 0, HEADER);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer[] segments = new ByteBuffer[segmentsFor(n)];
+        for (int s = 0; s < segments.length; s++) {
+            long offset = HEADER + (long) s * SEGMENT * RECORD;
+            int bodies = Math.min(SEGMENT, n - s * SEGMENT);
+            segments[s] = channel.map(mode, offset, (long) bodies * RECORD).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new BodyStore(header, segments, n, size, mapRadius);
+    }
+
+    private static int segmentsFor(int n) {
+        return (n + SEGMENT - 1) / SEGMENT;
+    }
+
+    /**
+     * @return the number of bodies in the store
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the maximum number of bodies the store can hold
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the side of the universe of the bodies
+     */
+    public double mapRadius() {
+        return mapRadius;
+    }
+
+    /**
+     * Sets the number of bodies in the store (and in the file header).
+     *
+     * @param n the new number of bodies, at most capacity()
+     */
+    public void setSize(int n) {
+        if (n < 0 || n > capacity) {
+            throw new IllegalArgumentException("size " + n + " out of [0, " + capacity + "]");
+        }
+        size = n;
+        if (header != null) {
+            header.putInt(16, n);
+        }
+    }
+
+    // reads a slot of the i-th record
+    private double get(int i, int slot) {
+        return segments[i >>> SHIFT].getDouble((i & (SEGMENT - 1)) * RECORD + slot);
+    }
+
+    private void set(int i, int slot, double value) {
+        segments[i >>> SHIFT].putDouble((i & (SEGMENT - 1)) * RECORD + slot, value);
+    }
+
+    private long getLong(int i, int slot) {
+        return segments[i >>> SHIFT].getLong((i & (SEGMENT - 1)) * RECORD + slot);
+    }
+
+    private void setLong(int i, int slot, long value) {
+        segments[i >>> SHIFT].putLong((i & (SEGMENT - 1)) * RECORD + slot, value);
+    }
+
+    public double rx(int i)     { return get(i, RX); }
+    public double ry(int i)     { return get(i, RY); }
+    public double vx(int i)     { return get(i, VX); }
+    public double vy(int i)     { return get(i, VY); }
+    public double mass(int i)   { return get(i, MASS); }
+    public double radius(int i) { return get(i, RADIUS); }
+
+    public Color color(int i) {
+        return new Color((int) getLong(i, RGB));
+    }
+
+    public int count(int i) {
+        return (int) getLong(i, COUNT);
+    }
+
+    /**
+     * Copies Body b into the i-th record.
+     *
+     * @param i the index of the record
+     * @param b the body to store
+     */
+    public void put(int i, Body b) {
+        set(i, RX, b.rx);
+        set(i, RY, b.ry);
+        set(i, VX, b.vx);
+        set(i, VY, b.vy);
+        set(i, MASS, b.mass());
+        set(i, RADIUS, b.radius);
+        setLong(i, RGB, b.color().getRGB() & 0xffffff);
+        setLong(i, COUNT, b.count);
+        set(i, FX, 0.0);
+        set(i, FY, 0.0);
+        set(i, PVX, 0.0);
+        set(i, PVY, 0.0);
+        set(i, PREDICTED, 0.0);
+        setLong(i, MERGED, b.isMerged() ? 1 : 0);
+    }
+
+    /**
+     * Copies the records of src (at most capacity() of them) into this
+     * store and sets size() accordingly.
+     *
+     * @param src the store to copy
+     */
+    public void copyFrom(BodyStore src) {
+        int n = Math.min(src.size, capacity);
+        for (int i = 0; i < n; i++) {
+            segments[i / SEGMENT].put((i % SEGMENT) * RECORD, src.segments[i / SEGMENT],
+                                      (i % SEGMENT) * RECORD, RECORD);
+        }
+        setSize(n);
+    }
+
+    /**
+     * Returns a new Body holding the state of the i-th record.
+     *
+     * @param i the index of the record
+     * @return  a heap copy of the i-th body
+     */
+    public Body get(int i) {
+        Body b = new Body(rx(i), ry(i), vx(i), vy(i), mass(i), color(i), radius(i));
+        b.count = count(i);
+        return b;
+    }
+
+    /**
+     * Stores the given bodies (merged ones are skipped) and updates size().
+     *
+     * @param bodies the bodies to store
+     */
+    public void write(Body[] bodies) {
+        int n = 0;
+        for (Body b : bodies) {
+            if (!b.isMerged()) {
+                put(n++, b);
+            }
+        }
+        setSize(n);
+    }
+
+    /**
+     * @return heap copies of all the bodies in the store
+     */
+    public Body[] read() {
+        Body[] bodies = new Body[size];
+        for (int i = 0; i < size; i++) {
+            bodies[i] = get(i);
+        }
+        return bodies;
+    }
+
+    /*
+     * Index-based kernels: the Body methods of the same name, applied to the
+     * i-th (and j-th) records with the same arithmetic, so a simulation on
+     * the store follows the same path as on heap bodies.
+     */
+
+    /**
+     * Resets the force of the i-th body to 0.
+     */
+    public void resetForce(int i) {
+        set(i, FX, 0.0);
+        set(i, FY, 0.0);
+    }
+
+    /**
+     * Adds the force exerted on the i-th body by a body of mass m at (x, y).
+     */
+    public void addForce(int i, double m, double x, double y) {
+        double dx = x - rx(i);
+        double dy = y - ry(i);
+        double dist = Math.sqrt(dx*dx + dy*dy);
+        double F = (Body.G * mass(i) * m) / (dist*dist + EPS*EPS);
+        set(i, FX, get(i, FX) + F * dx / dist);
+        set(i, FY, get(i, FY) + F * dy / dist);
+    }
+
+    /**
+     * Adds the forces exerted on the i-th body by the n bodies of masses
+     * m[k] at (x[k], y[k]), in one loop like Body.addForces().
+     */
+    public void addForces(int i, double[] m, double[] x, double[] y, int n) {
+        double rx = rx(i), ry = ry(i), mass = mass(i);
+        double ax = get(i, FX), ay = get(i, FY);
+        for (int k = 0; k < n; k++) {
+            double dx = x[k] - rx;
+            double dy = y[k] - ry;
+            double dist2 = dx*dx + dy*dy;
+            double F = (Body.G * mass * m[k]) / ((dist2 + EPS*EPS) * Math.sqrt(dist2));
+            ax += F * dx;
+            ay += F * dy;
+        }
+        set(i, FX, ax);
+        set(i, FY, ay);
+    }
+
+    /**
+     * Kicks the i-th body by its force for dt.
+     */
+    public void updateVelocity(int i, double dt) {
+        double m = mass(i);
+        set(i, VX, vx(i) + dt * get(i, FX) / m);
+        set(i, VY, vy(i) + dt * get(i, FY) / m);
+    }
+
+    /**
+     * Drifts the i-th body by its velocity for dt.
+     */
+    public void move(int i, double dt) {
+        set(i, RX, rx(i) + dt * vx(i));
+        set(i, RY, ry(i) + dt * vy(i));
+    }
+
+    public double kineticEnergy(int i) {
+        double vx = vx(i), vy = vy(i);
+        return (mass(i) * (vx * vx + vy * vy)) / 2;
+    }
+
+    /**
+     * @return the time until the i-th and j-th bodies collide, infinite if they don't
+     */
+    public double timeToHit(int i, int j) {
+        if (i == j) {
+            return INFINITY;
+        }
+        return timeToHit(rx(i), ry(i), vx(i), vy(i), radius(i), j);
+    }
+
+    /**
+     * Same as timeToHit(i, j) for a body i of the given state, so a row of
+     * predictions reads it only once.
+     */
+    public double timeToHit(double rx, double ry, double vx, double vy, double radius, int j) {
+        double dx = rx(j) - rx;
+        double dy = ry(j) - ry;
+        double dvx = vx(j) - vx;
+        double dvy = vy(j) - vy;
+        double dvdr = dvx * dx + dvy * dy;
+        if (dvdr >= 0) {
+            return INFINITY;
+        }
+        double dvdv = dvx * dvx + dvy * dvy;
+        if (dvdv == 0) {
+            return INFINITY;
+        }
+        double drdr = dx * dx + dy * dy;
+        double sigma = radius(j) + radius;
+        double discriminant = dvdr * dvdr - dvdv * (drdr - sigma * sigma);
+        if (discriminant < 0) {
+            return INFINITY;
+        }
+        return -(dvdr + Math.sqrt(discriminant)) / dvdv;
+    }
+
+    /**
+     * @return true iff the discs of the i-th and j-th bodies intersect
+     */
+    public boolean overlaps(int i, int j) {
+        if (i == j) {
+            return false;
+        }
+        double dx = rx(j) - rx(i);
+        double dy = ry(j) - ry(i);
+        double sigma = radius(j) + radius(i);
+        return dx * dx + dy * dy < sigma * sigma;
+    }
+
+    public double timeToHitHorizontalWall(int i, double ymin, double ymax) {
+        double vy = vy(i);
+        if (vy < 0) {
+            return (radius(i) - ry(i) - ymin) / vy;
+        } else if (vy > 0) {
+            return (ymax - ry(i) - radius(i)) / vy;
+        } else {
+            return INFINITY;
+        }
+    }
+
+    public double timeToHitVerticalWall(int i, double xmin, double xmax) {
+        double vx = vx(i);
+        if (vx < 0) {
+            return (radius(i) - rx(i) - xmin) / vx;
+        } else if (vx > 0) {
+            return (xmax - rx(i) - radius(i)) / vx;
+        } else {
+            return INFINITY;
+        }
+    }
+
+    /**
+     * Elastic collision of the i-th and j-th bodies.
+     */
+    public void bounceOff(int i, int j) {
+        double dx = rx(j) - rx(i);
+        double dy = ry(j) - ry(i);
+        double dvx = vx(j) - vx(i);
+        double dvy = vy(j) - vy(i);
+        double dvdr = dvx * dx + dvy * dy;
+        double dist = Math.sqrt(dx * dx + dy * dy);
+        double mi = mass(i), mj = mass(j);
+
+        double J = 2 * dvdr * mi * mj / ((mi + mj) * dist);
+        double jx = J * dx / dist;
+        double jy = J * dy / dist;
+
+        set(i, VX, vx(i) + jx / mi);
+        set(i, VY, vy(i) + jy / mi);
+        set(j, VX, vx(j) - jx / mj);
+        set(j, VY, vy(j) - jy / mj);
+        invalidate(i);
+        invalidate(j);
+    }
+
+    /**
+     * Coalesces the j-th body into the i-th one, see Body.merge().
+     */
+    public void merge(int i, int j) {
+        double mi = mass(i), mj = mass(j);
+        double m = mi + mj;
+        set(i, RX, (rx(i) * mi + rx(j) * mj) / m);
+        set(i, RY, (ry(i) * mi + ry(j) * mj) / m);
+        set(i, VX, (vx(i) * mi + vx(j) * mj) / m);
+        set(i, VY, (vy(i) * mi + vy(j) * mj) / m);
+        double ri = radius(i), rj = radius(j);
+        set(i, RADIUS, Math.sqrt(ri * ri + rj * rj));
+        if (mj > mi) {
+            setLong(i, RGB, getLong(j, RGB));
+        }
+        set(i, MASS, m);
+        setLong(j, MERGED, 1);
+        invalidate(i);
+        invalidate(j);
+    }
+
+    /**
+     * @return true if the i-th body has been absorbed by another one
+     */
+    public boolean isMerged(int i) {
+        return getLong(i, MERGED) != 0;
+    }
+
+    public void bounceOffVerticalWall(int i) {
+        set(i, VX, -vx(i));
+        invalidate(i);
+    }
+
+    public void bounceOffHorizontalWall(int i) {
+        set(i, VY, -vy(i));
+        invalidate(i);
+    }
+
+    /**
+     * Invalidates the pending collision events of the i-th body.
+     */
+    public void invalidate(int i) {
+        setLong(i, COUNT, getLong(i, COUNT) + 1);
+    }
+
+    /**
+     * Records the current velocity of the i-th body as the one its
+     * collisions were predicted with at time t.
+     */
+    public void markPredicted(int i, double t) {
+        set(i, PVX, vx(i));
+        set(i, PVY, vy(i));
+        set(i, PREDICTED, t);
+    }
+
+    public double predictedAt(int i) {
+        return get(i, PREDICTED);
+    }
+
+    /**
+     * @return the magnitude of the velocity change of the i-th body since markPredicted()
+     */
+    public double velocityChange(int i) {
+        double dvx = vx(i) - get(i, PVX);
+        double dvy = vy(i) - get(i, PVY);
+        return Math.sqrt(dvx*dvx + dvy*dvy);
+    }
+
+    /**
+     * Drops the merged records, moving the others down in order, and
+     * updates size(). index[i] is set to the new index of the i-th record,
+     * or -1 if it was merged.
+     *
+     * @param index receives the new indices, at least size() long
+     */
+    public void compact(int[] index) {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (isMerged(i)) {
+                index[i] = -1;
+                continue;
+            }
+            if (n != i) {
+                segments[n / SEGMENT].put((n % SEGMENT) * RECORD, segments[i / SEGMENT],
+                                          (i % SEGMENT) * RECORD, RECORD);
+            }
+            index[i] = n++;
+        }
+        setSize(n);
+    }
+
+    /**
+     * Flushes a file backed store to the disk; does nothing otherwise.
+     */
+    public void force() {
+        if (header == null || header.isReadOnly()) {
+            return;
+        }
+        ((MappedByteBuffer) header).force();
+        for (ByteBuffer segment : segments) {
+            ((MappedByteBuffer) segment).force();
+        }
+    }
+}
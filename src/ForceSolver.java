@@ -0,0 +1,24 @@
+
+/**
+ * Computes the gravitational forces acting on the bodies of the system.
+ */
+public interface ForceSolver {
+
+    /**
+     * Resets the force of every body and sets it to the net force
+     * exerted on it by all the other bodies.
+     *
+     * @param bodies the bodies of the system
+     */
+    void computeForces(Body[] bodies);
+
+    /**
+     * Same as computeForces(Body[]) for the bodies of a store, by index.
+     *
+     * @param store the bodies of the system
+     * @throws UnsupportedOperationException if the solver only works on heap bodies
+     */
+    default void computeForces(BodyStore store) {
+        throw new UnsupportedOperationException(getClass().getName() + " only works on heap bodies");
+    }
+}
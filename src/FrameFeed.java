@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Ring buffer of simulation frames in a memory-mapped file, shared with
+ * viewers and analysis tools running in other processes of the same host.
+ * <p>
+ * The file starts with a HEADER byte header (magic number, number of slots,
+ * capacity in bodies, sequence number of the last complete frame) followed
+ * by the slots. A slot holds its version, the simulation time, the number
+ * of bodies and then rx, ry, vx, vy for each body, all little-endian.
+ * <p>
+ * Frame number seq goes to slot seq % slots. The writer sets the slot version
+ * to 2 * seq - 1 (odd: being written), copies the frame, sets the version to
+ * 2 * seq and finally publishes seq in the header. A reader takes the last
+ * published seq, copies its slot and keeps the copy only if the version was
+ * 2 * seq before and after the copy, so it never sees a torn frame and never
+ * blocks the writer.
+ */
+public class FrameFeed {
+
+    public static final long MAGIC = 0x4e424f4459465231L;      // "NBODYFR1"
+    public static final int HEADER = 64;                        // header size in bytes
+    private static final int SLOT_HEADER = 24;                  // version, time, n
+    private static final int BODY = 32;                         // rx, ry, vx, vy
+
+    // volatile access to the longs of the mapped file
+    private static final VarHandle LONG =
+        MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final ByteBuffer buffer;   // the whole mapped file
+    private final int slots;           // number of frames kept
+    private final int capacity;        // maximum number of bodies in a frame
+    private final long slotBytes;      // size of a slot
+    private long seq;                  // last frame written (writer only)
+
+    /**
+     * A frame copied out of the feed.
+     */
+    public static class Frame {
+        public long seq;                         // sequence number of the frame
+        public double time;                      // simulation time of the frame
+        public int n;                            // number of bodies
+        public double[] state = new double[0];   // rx, ry, vx, vy of each body
+    }
+
+    private FrameFeed(ByteBuffer buffer, int slots, int capacity) {
+        this.buffer = buffer;
+        this.slots = slots;
+        this.capacity = capacity;
+        this.slotBytes = SLOT_HEADER + (long) capacity * BODY;
+        this.seq = (long) LONG.getAcquire(buffer, 16);
+    }
+
+    /**
+     * Creates (or overwrites) the feed file, for frames of up to capacity bodies.
+     *
+     * @param path     the file shared with the readers
+     * @param capacity the maximum number of bodies of a frame
+     * @param slots    the number of frames kept in the ring
+     * @return         the feed, to publish frames
+     * @throws IOException if the file can't be created or mapped
+     */
+    public static FrameFeed create(String path, int capacity, int slots) throws IOException {
+        long size = HEADER + slots * (SLOT_HEADER + (long) capacity * BODY);
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("frames too large for a feed of " + slots + " slots");
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.setLength(0);
+            file.setLength(size);
+            ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size)
+                                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(8, slots);
+            buffer.putInt(12, capacity);
+            LONG.setRelease(buffer, 16, 0L);
+            LONG.setRelease(buffer, 0, MAGIC);
+            return new FrameFeed(buffer, slots, capacity);
+        }
+    }
+
+    /**
+     * Maps an existing feed file, to read frames.
+     *
+     * @param path the file of the feed
+     * @return     the feed
+     * @throws IOException if the file can't be mapped or is not a feed
+     */
+    public static FrameFeed open(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length())
+                                    .order(ByteOrder.LITTLE_ENDIAN);
+            if ((long) LONG.getAcquire(buffer, 0) != MAGIC)
+                throw new IOException(path + " is not a frame feed");
+            return new FrameFeed(buffer, buffer.getInt(8), buffer.getInt(12));
+        }
+    }
+
+    /**
+     * @return the maximum number of bodies of a frame
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    private int slotOffset(long seq) {
+        return (int) (HEADER + (seq % slots) * slotBytes);
+    }
+
+    /**
+     * Publishes the state of the bodies (merged ones are skipped) at time t.
+     * Bodies beyond capacity() are left out of the frame.
+     *
+     * @param t      the simulation time
+     * @param bodies the bodies
+     */
+    public void publish(double t, Body[] bodies) {
+        long next = seq + 1;
+        int slot = slotOffset(next);
+
+        // odd version: readers of this slot will drop their copy
+        LONG.setVolatile(buffer, slot, 2 * next - 1);
+        VarHandle.storeStoreFence();    // the frame writes below can't overtake the odd version
+
+        int n = 0;
+        int p = slot + SLOT_HEADER;
+        for (Body b : bodies) {
+            if (b.isMerged())
+                continue;
+            if (n == capacity)
+                break;
+            buffer.putDouble(p, b.rx);
+            buffer.putDouble(p + 8, b.ry);
+            buffer.putDouble(p + 16, b.vx);
+            buffer.putDouble(p + 24, b.vy);
+            p += BODY;
+            n++;
+        }
+        buffer.putDouble(slot + 8, t);
+        buffer.putLong(slot + 16, n);
+
+        // complete, then visible to new readers
+        LONG.setRelease(buffer, slot, 2 * next);
+        LONG.setRelease(buffer, 16, next);
+        seq = next;
+    }
+
+    /**
+     * Same as publish(double, Body[]) for the bodies of a store.
+     *
+     * @param t     the simulation time
+     * @param store the bodies
+     */
+    public void publish(double t, BodyStore store) {
+        long next = seq + 1;
+        int slot = slotOffset(next);
+
+        LONG.setVolatile(buffer, slot, 2 * next - 1);
+        VarHandle.storeStoreFence();
+
+        int n = 0;
+        int p = slot + SLOT_HEADER;
+        for (int i = 0; i < store.size() && n < capacity; i++) {
+            if (store.isMerged(i))
+                continue;
+            buffer.putDouble(p, store.rx(i));
+            buffer.putDouble(p + 8, store.ry(i));
+            buffer.putDouble(p + 16, store.vx(i));
+            buffer.putDouble(p + 24, store.vy(i));
+            p += BODY;
+            n++;
+        }
+        buffer.putDouble(slot + 8, t);
+        buffer.putLong(slot + 16, n);
+
+        LONG.setRelease(buffer, slot, 2 * next);
+        LONG.setRelease(buffer, 16, next);
+        seq = next;
+    }
+
+    /**
+     * @return the sequence number of the last complete frame, 0 if none
+     */
+    public long latest() {
+        return (long) LONG.getAcquire(buffer, 16);
+    }
+
+    /**
+     * Copies the last complete frame into frame.
+     *
+     * @param frame the frame to fill
+     * @return      true if a consistent frame was copied, false if nothing is
+     *              published yet or the writer kept overwriting the slot
+     */
+    public boolean readLatest(Frame frame) {
+        for (int attempt = 0; attempt < 8; attempt++) {
+            long last = latest();
+            if (last == 0)
+                return false;
+            int slot = slotOffset(last);
+
+            long before = (long) LONG.getAcquire(buffer, slot);
+            if (before != 2 * last)
+                continue;       // already being overwritten by a later frame
+
+            double time = buffer.getDouble(slot + 8);
+            int n = (int) Math.min(buffer.getLong(slot + 16), capacity);
+            if (frame.state.length < 4 * n)
+                frame.state = new double[4 * n];
+            int p = slot + SLOT_HEADER;
+            for (int i = 0; i < 4 * n; i++, p += 8)
+                frame.state[i] = buffer.getDouble(p);
+
+            VarHandle.loadLoadFence();
+            if ((long) LONG.getVolatile(buffer, slot) != before)
+                continue;       // torn copy
+
+            frame.seq = last;
+            frame.time = time;
+            frame.n = n;
+            return true;
+        }
+        return false;
+    }
+
+    // follows a feed and prints a summary of each new frame
+    public static void main(String[] args) throws Exception {
+        FrameFeed feed = FrameFeed.open(args[0]);
+        Frame frame = new Frame();
+        long shown = 0;
+        while (true) {
+            if (feed.readLatest(frame) && frame.seq != shown) {
+                double cx = 0.0, cy = 0.0;
+                for (int i = 0; i < frame.n; i++) {
+                    cx += frame.state[4 * i];
+                    cy += frame.state[4 * i + 1];
+                }
+                System.out.printf("frame %d: t=%.5f, n=%d, mean position=(%.5f, %.5f)%n",
+                                  frame.seq, frame.time, frame.n, cx / frame.n, cy / frame.n);
+                shown = frame.seq;
+            }
+            Thread.sleep(100);
+        }
+    }
+}
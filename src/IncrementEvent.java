@@ -1,14 +1,30 @@
 import edu.princeton.cs.algs4.*;
 import java.awt.Color;
-import java.util.PriorityQueue;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 
 public class  IncrementEvent {
 
     private double HZ = 0.5;    // redraw frequency as redraws per clock tick (in Simulator time)
-    private PriorityQueue<Event> pq;    // the event priority queue
-    private Body[] bodies;       // the array of bodies
+    private final EventQueue pq = new EventQueue();    // the event priority queue
+    private Body[] bodies;       // the array of bodies, null when they are in store
+    private final BodyStore store;            // the bodies, by index, when kept off-heap (else null)
     private double t = 0.0;                   // simulation clock time
+    private double horizon = Double.NEGATIVE_INFINITY;    // time up to which pq holds the predicted events
+    private double tolerance = 0.0;           // tolerated path error before re-predicting, in radii
+    private int purgeSize = 0;                // size of pq at which invalid events are purged
+    private FrameFeed feed;                   // frames published at each redraw, if any
+    private final boolean display;            // draw the bodies with StdDraw at each redraw?
+
+    private final EventBuffer scratch = new EventBuffer();   // events of the sequential predictions
+    private EventBuffer[] buffers = new EventBuffer[0];       // events of the parallel predictions, one per chunk
+    private int[] changed = new int[16];      // indices of the bodies to predict again at this increment
+    private int changedSize;
+    private int[] index = new int[0];         // new indices of the records after a compaction of store
+
+    private static final int LOOKAHEAD = 4;   // windows covered by a full prediction
+    private static final int CHUNK = 64;      // bodies predicted by one parallel task
     private final double xmin,xmax,ymin,ymax;
 
     /**
@@ -20,53 +36,222 @@ public class  IncrementEvent {
      * @param ymax the maximum y value of the global map
      */
     public IncrementEvent(Body[] bodies, double xmin, double xmax, double ymin, double ymax) {
+        this(bodies, xmin, xmax, ymin, ymax, true);
+    }
+
+    /**
+     * Constructs the simulator class with given array of bodies, optionally
+     * without any window (StdDraw is never touched if display is false).
+     * @param bodies the array of bodies
+     * @param xmin the minimum x value of the global map
+     * @param xmax the maximum x value of the global map
+     * @param ymin the minimum y value of the global map 
+     * @param ymax the maximum y value of the global map
+     * @param display true to draw the bodies at each redraw event
+     */
+    public IncrementEvent(Body[] bodies, double xmin, double xmax, double ymin, double ymax, boolean display) {
+        this(bodies, null, xmin, xmax, ymin, ymax, display);
+    }
+
+    /**
+     * Constructs the simulator class for the bodies of a store, which are
+     * moved, collided and compacted in place, by index.
+     * @param store the bodies
+     * @param xmin the minimum x value of the global map
+     * @param xmax the maximum x value of the global map
+     * @param ymin the minimum y value of the global map 
+     * @param ymax the maximum y value of the global map
+     * @param display true to draw the bodies at each redraw event
+     */
+    public IncrementEvent(BodyStore store, double xmin, double xmax, double ymin, double ymax, boolean display) {
+        this(null, store, xmin, xmax, ymin, ymax, display);
+    }
+
+    private IncrementEvent(Body[] bodies, BodyStore store, double xmin, double xmax, double ymin, double ymax,
+                           boolean display) {
         // (lzj) the bodies should be modified to pass by reference
         this.bodies = bodies;
-        this.pq = new PriorityQueue<>();
+        this.store = store;
+        this.display = display;
         this.xmin = xmin;
         this.xmax = xmax;
         this.ymin = ymin;
         this.ymax = ymax;
 
         // set default double buffering 
-        useDoubleBuffering(true);
+        if (display) {
+            useDoubleBuffering(true);
+        }
     }
 
     // pushes the upcoming collision events to the priority queue if they occur within the specified time limit
     private void predict(Body a, double limit) {
-        if (a == null) {
+        scratch.clear();
+        predict(a, limit, scratch);
+        for (int k = 0; k < scratch.size; k++) {
+            pq.add(scratch.event(k, store));
+        }
+    }
+
+    // same for the i-th body
+    private void predict(int i, double limit) {
+        scratch.clear();
+        predict(i, limit, scratch);
+        for (int k = 0; k < scratch.size; k++) {
+            pq.add(scratch.event(k, store));
+        }
+    }
+
+    // records the upcoming collision events of a within the time limit in out
+    // (only reads the other bodies, so several bodies can be predicted concurrently)
+    private void predict(Body a, double limit, EventBuffer out) {
+        if (a == null || a.isMerged()) {
             return;
         }
+        a.markPredicted(t);
         for (Body p : bodies) {
-            // check possible collisions b/w a and p
-            double dt = a.timeToHit(p);
+            if (p.isMerged()) {
+                continue;
+            }
+            // check possible collisions b/w a and p; an approaching pair that already
+            // overlaps (drifted within the re-prediction tolerance) collides right now
+            double dt = Math.max(a.timeToHit(p), 0.0);
+            if (Body.mergingEnabled() && a.overlaps(p)) {
+                dt = 0.0;       // already overlapping (e.g. after a merge), coalesce right now
+            }
             if (t + dt <= limit) {
-                // if collision is possible within time limit, add to the pq
-                pq.add(new Event(t + dt, a, p));
+                // if collision is possible within time limit, add to the events
+                out.add(t + dt, a, p);
             }
         }
-        double dtV = a.timeToHitVerticalWall(xmin, xmax);
+        // a body past a wall and moving outward (drifted within the tolerance,
+        // or grown across it by a merge) bounces off right now
+        double dtV = Math.max(a.timeToHitVerticalWall(xmin, xmax), 0.0);
+        double dtH = Math.max(a.timeToHitHorizontalWall(ymin, ymax), 0.0);
         if (t + dtV <= limit) {
-            pq.add(new Event(t + dtV, null, a));
+            out.add(t + dtV, null, a);
         }
-        double dtH = a.timeToHitHorizontalWall(ymin, ymax);
         if (t + dtH <= limit) {
-            pq.add(new Event(t + dtH, a, null));
+            out.add(t + dtH, a, null);
         }
     }
 
+    // same for the i-th body, in bodies or in store
+    private void predict(int i, double limit, EventBuffer out) {
+        if (store == null) {
+            predict(bodies[i], limit, out);
+            return;
+        }
+        if (store.isMerged(i)) {
+            return;
+        }
+        store.markPredicted(i, t);
+        double rx = store.rx(i), ry = store.ry(i), vx = store.vx(i), vy = store.vy(i), r = store.radius(i);
+        boolean merging = Body.mergingEnabled();    // else no record is ever merged
+        int n = store.size();
+        for (int j = 0; j < n; j++) {
+            if (j == i || (merging && store.isMerged(j))) {
+                continue;
+            }
+            double dt = Math.max(store.timeToHit(rx, ry, vx, vy, r, j), 0.0);
+            if (merging && store.overlaps(i, j)) {
+                dt = 0.0;
+            }
+            if (t + dt <= limit) {
+                out.add(t + dt, i, j);
+            }
+        }
+        double dtV = Math.max(store.timeToHitVerticalWall(i, xmin, xmax), 0.0);
+        double dtH = Math.max(store.timeToHitHorizontalWall(i, ymin, ymax), 0.0);
+        if (t + dtV <= limit) {
+            out.add(t + dtV, -1, i);
+        }
+        if (t + dtH <= limit) {
+            out.add(t + dtH, i, -1);
+        }
+    }
+
+    /**
+     * Predicts the events of the given bodies in parallel and rebuilds the
+     * priority queue with them and the still valid pending events.
+     * Each task fills its own event buffer; the queue is then rebuilt in
+     * place with one O(M) heapify instead of M insertions. The buffers and
+     * the heap are kept for the next increments.
+     */
+    private void predictAll(int[] todo, int count, double limit) {
+        int chunks = (count + CHUNK - 1) / CHUNK;
+        if (buffers.length < chunks) {
+            int n = buffers.length;
+            buffers = Arrays.copyOf(buffers, chunks);
+            for (int c = n; c < chunks; c++) {
+                buffers[c] = new EventBuffer();
+            }
+        }
+        IntStream.range(0, chunks).parallel().forEach(c -> {
+            EventBuffer buffer = buffers[c];
+            buffer.clear();
+            for (int k = c * CHUNK; k < Math.min(count, (c + 1) * CHUNK); k++) {
+                predict(todo == null ? k : todo[k], limit, buffer);
+            }
+        });
+
+        pq.dropInvalid(store);
+        for (int c = 0; c < chunks; c++) {
+            EventBuffer buffer = buffers[c];
+            for (int k = 0; k < buffer.size; k++) {
+                pq.append(buffer.event(k, store));
+            }
+            buffer.clear();
+        }
+        pq.heapify();
+        purgeSize = 2 * pq.size() + size();
+    }
+
+    // number of bodies, merged ones included until the next compaction
+    private int size() {
+        return store != null ? store.size() : bodies.length;
+    }
+
     // Handles the Redraw event by redrawing all the bodies with updated positions
-    private void redraw(double limit) {
-        StdDraw.clear(); 
-        for (Body p : bodies) {
-            p.draw();      
+    private void redraw() {
+        if (display) {
+            StdDraw.clear(); 
+            if (store != null) {
+                for (int i = 0; i < store.size(); i++) {
+                    if (!store.isMerged(i)) {
+                        StdDraw.setPenColor(store.color(i));
+                        StdDraw.filledCircle(store.rx(i), store.ry(i), store.radius(i));
+                    }
+                }
+            } else {
+                for (Body p : bodies) {
+                    if (!p.isMerged()) {
+                        p.draw();
+                    }
+                }
+            }
+            StdDraw.show();     
+            StdDraw.pause(1);  
         }
-        StdDraw.show();     
-        StdDraw.pause(1);  
 
-        if (t < limit) {
-            pq.add(new Event(t + 1.0 / HZ, null, null));
+        if (feed != null) {
+            if (store != null) {
+                feed.publish(t, store);
+            } else {
+                feed.publish(t, bodies);
+            }
         }
+
+        pq.add(new Event(t + 1.0 / HZ, null, null));
+    }
+
+    /**
+     * Publishes the state of the bodies to feed at each redraw event.
+     *
+     * @param feed the shared memory feed, null to stop publishing
+     */
+    public void setFrameFeed(FrameFeed feed) {
+        this.feed = feed;
     }
 
     public static void useDoubleBuffering(boolean yes) {
@@ -77,53 +262,233 @@ public class  IncrementEvent {
         }
     }
 
-    public void increment(double limit) {
+    /**
+     * Returns the current array of bodies. When merging is enabled the array
+     * is replaced by a compacted copy after each call to increment().
+     *
+     * @return the array of bodies still in the simulation, null if they are in store()
+     */
+    public Body[] bodies() {
+        return bodies;
+    }
 
-        // (lzj) attention here ! If you call "increment()" multiple times, you should set t=0
-        pq = new PriorityQueue<>();
-        t = 0.0;
+    /**
+     * Returns the store of the bodies. When merging is enabled the merged
+     * records are compacted out (and the others renumbered) after each
+     * call to increment().
+     *
+     * @return the bodies, null if they are on the heap, see bodies()
+     */
+    public BodyStore store() {
+        return store;
+    }
 
-        for (Body a : bodies) {
-            a.count = 0;
-            predict(a, limit);
+    // drops merged bodies from the array of bodies (or from the store,
+    // renumbering the bodies of the pending events)
+    private void compact() {
+        if (store != null) {
+            if (index.length < store.size()) {
+                index = new int[store.size()];
+            }
+            store.compact(index);
+            pq.renumber(index);
+            return;
+        }
+        int n = 0;
+        for (Body p : bodies) {
+            if (!p.isMerged()) {
+                n++;
+            }
         }
+        Body[] live = new Body[n];
+        int i = 0;
+        for (Body p : bodies) {
+            if (!p.isMerged()) {
+                live[i++] = p;
+            }
+        }
+        bodies = live;
+    }
 
-        pq.add(new Event(0.0, null, null));   
+    /**
+     * Returns the simulation clock time, which keeps running across increments.
+     *
+     * @return the current time of the simulation
+     */
+    public double time() {
+        return t;
+    }
 
+    /**
+     * Sets how much a body's path may deviate from its last collision
+     * prediction before it is predicted again, as a fraction of its radius.
+     * The deviation is bounded by the velocity change since the prediction
+     * times the whole span from the prediction to the end of the horizon,
+     * which covers both the error already made and the error to come.
+     * <p>
+     * 0.0 (default) re-predicts every body whose velocity changed.
+     *
+     * @param tolerance the tolerated deviation, in radii
+     */
+    public void setRepredictTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Advances the simulation by dt with event driven collisions.
+     * <p>
+     * The event queue is kept from one call to the next: the collisions are
+     * predicted LOOKAHEAD windows ahead, and within that horizon only the
+     * bodies whose velocity changed (e.g. by gravity) beyond the tolerance are
+     * predicted again. Their pending events, and those of their partners with
+     * them, are invalidated through the collision count.
+     *
+     * @param dt the duration of the increment
+     */
+    public void increment(double dt) {
+
+        double limit = t + dt;
+
+        int n = size();
+
+        if (limit > horizon) {
+            // schedule exhausted: predict everything again from scratch
+            pq.clear();
+            horizon = t + LOOKAHEAD * dt;
+            pq.add(new Event(t, null, null));
+            predictAll(null, n, horizon);
+        } else {
+            changedSize = 0;
+            for (int i = 0; i < n; i++) {
+                if (store != null) {
+                    if (store.velocityChange(i) * (horizon - store.predictedAt(i)) > tolerance * store.radius(i)) {
+                        store.invalidate(i);
+                        addChanged(i);
+                    }
+                } else {
+                    Body a = bodies[i];
+                    if (a.velocityChange() * (horizon - a.predictedAt()) > tolerance * a.radius) {
+                        a.invalidate();
+                        addChanged(i);
+                    }
+                }
+            }
+
+            // a few bodies: insert their events, else rebuild the whole queue
+            if (changedSize * 16 < pq.size()) {
+                for (int k = 0; k < changedSize; k++) {
+                    predict(changed[k], horizon);
+                }
+            } else {
+                predictAll(changed, changedSize, horizon);
+            }
+        }
+
+        // drop the invalidated events once they make up most of the queue
+        if (pq.size() > purgeSize) {
+            pq.dropInvalid(store);
+            pq.heapify();
+            purgeSize = 2 * pq.size() + n;
+        }
+
+        int merges = 0;
 
         // the main event driven simulation loop
-        while (!pq.isEmpty()) {        
+        while (!pq.isEmpty() && pq.peek().time <= limit) {        
 
             // get impending event, drive the simulation, discard if invalids
             Event e = pq.remove();
 
-            if (!e.isValid())
+            if (!e.isValid(store))
                 continue;
 
+            // a valid event is never in the past, else the clock would run backwards
+            assert e.time >= t : "event at " + e.time + " before the clock at " + t;
+
             // advance all bodies in time and bring them to time of current event
-            for (Body p : bodies) {
-                p.move(e.time - t);
-            }
+            move(e.time - t);
             t = e.time;         // advance the clock
 
+            if (store != null) {
+                // same as below, by index
+                int i = e.i, j = e.j;
+                if (i >= 0 && j >= 0) {
+                    if (Body.mergingEnabled()) {
+                        store.merge(i, j);
+                        merges++;
+                    } else {
+                        store.bounceOff(i, j);
+                    }
+                } else if (i >= 0) {
+                    store.bounceOffHorizontalWall(i);
+                } else if (j >= 0) {
+                    store.bounceOffVerticalWall(j);
+                } else {
+                    redraw();
+                    continue;
+                }
+                if (i >= 0) {
+                    predict(i, horizon);
+                }
+                if (j >= 0) {
+                    predict(j, horizon);
+                }
+                continue;
+            }
+
             // update the body velocities
             Body a = e.a, b = e.b;
             if (a != null && b != null) {
-                a.bounceOff(b);
+                if (Body.mergingEnabled()) {
+                    a.merge(b);
+                    merges++;
+                } else {
+                    a.bounceOff(b);
+                }
             } else if (a != null) {
                 a.bounceOffHorizontalWall();
             } else if (b != null) {                
                 b.bounceOffVerticalWall();
             } else {               
-                redraw(limit);
+                redraw();
                 continue;
             }
 
-            predict(a, limit);      // add new events related to a 
-            predict(b, limit);      // and b
+            predict(a, horizon);      // add new events related to a 
+            predict(b, horizon);      // and b
+        }
+
+        // bring all bodies to the end of the increment
+        move(limit - t);
+        t = limit;
+
+        // the merged bodies leave the simulation (and the next tree)
+        if (merges > 0) {
+            compact();
         }
     }
 
+    // moves all the bodies by dt
+    private void move(double dt) {
+        if (store != null) {
+            int n = store.size();
+            for (int i = 0; i < n; i++) {
+                store.move(i, dt);
+            }
+        } else {
+            for (Body p : bodies) {
+                p.move(dt);
+            }
+        }
+    }
+
+    private void addChanged(int i) {
+        if (changedSize == changed.length) {
+            changed = Arrays.copyOf(changed, 2 * changedSize);
+        }
+        changed[changedSize++] = i;
+    }
+
     /**
      * Sets the number of redraw events per second. This value should be set in
      * proportion to the average speed of the paricles in the system. TOO HIGH
@@ -139,10 +504,175 @@ public class  IncrementEvent {
     }
 
 
+    // growable arrays of predicted events, turned into Events once merged
+    private static class EventBuffer {
+
+        public double[] time = new double[16];      // time of the events
+        public Body[] a = new Body[16], b = new Body[16];   // bodies of the events, as in Event
+        public int[] i = new int[16], j = new int[16];      // or their indices in the store
+        public int size;
+
+        private void grow() {
+            if (size == time.length) {
+                time = Arrays.copyOf(time, 2 * size);
+                a = Arrays.copyOf(a, 2 * size);
+                b = Arrays.copyOf(b, 2 * size);
+                i = Arrays.copyOf(i, 2 * size);
+                j = Arrays.copyOf(j, 2 * size);
+            }
+        }
+
+        public void add(double time, Body a, Body b) {
+            grow();
+            this.time[size] = time;
+            this.a[size] = a;
+            this.b[size] = b;
+            size++;
+        }
+
+        public void add(double time, int i, int j) {
+            grow();
+            this.time[size] = time;
+            this.i[size] = i;
+            this.j[size] = j;
+            size++;
+        }
+
+        // the k-th event, of the bodies of store if not null
+        public Event event(int k, BodyStore store) {
+            if (store != null) {
+                return new Event(time[k], i[k], j[k], store);
+            }
+            return new Event(time[k], a[k], b[k]);
+        }
+
+        public void clear() {
+            Arrays.fill(a, 0, size, null);
+            Arrays.fill(b, 0, size, null);
+            size = 0;
+        }
+    }
+
+    // binary min-heap of events on an array kept across increments, which
+    // can also be rebuilt in place: drop the invalid events, append the new
+    // ones, then heapify
+    private static class EventQueue {
+
+        private Event[] heap = new Event[16];
+        private int size;
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public Event peek() {
+            return heap[0];
+        }
+
+        public void add(Event e) {
+            append(e);
+            swim(size - 1);
+        }
+
+        public Event remove() {
+            Event min = heap[0];
+            heap[0] = heap[--size];
+            heap[size] = null;
+            if (size > 0) {
+                sink(0);
+            }
+            return min;
+        }
+
+        // adds e at the end of the array, without restoring the heap order
+        public void append(Event e) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, 2 * size);
+            }
+            heap[size++] = e;
+        }
+
+        // removes the invalid events, without restoring the heap order
+        public void dropInvalid(BodyStore store) {
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (heap[i].isValid(store)) {
+                    heap[n++] = heap[i];
+                }
+            }
+            Arrays.fill(heap, n, size, null);
+            size = n;
+        }
+
+        // moves the events to the new indices of their bodies after a
+        // compaction of the store, in place so the heap order is kept; the
+        // events of the merged bodies (already invalid) are dropped
+        public void renumber(int[] index) {
+            for (int k = 0; k < size; k++) {
+                Event e = heap[k];
+                if (e.i >= 0) {
+                    e.i = index[e.i];
+                    e.dropped |= e.i < 0;
+                }
+                if (e.j >= 0) {
+                    e.j = index[e.j];
+                    e.dropped |= e.j < 0;
+                }
+            }
+        }
+
+        // restores the heap order after append() or dropInvalid()
+        public void heapify() {
+            for (int k = size / 2 - 1; k >= 0; k--) {
+                sink(k);
+            }
+        }
+
+        public void clear() {
+            Arrays.fill(heap, 0, size, null);
+            size = 0;
+        }
+
+        private void swim(int k) {
+            Event e = heap[k];
+            while (k > 0) {
+                int parent = (k - 1) / 2;
+                if (heap[parent].compareTo(e) <= 0) {
+                    break;
+                }
+                heap[k] = heap[parent];
+                k = parent;
+            }
+            heap[k] = e;
+        }
+
+        private void sink(int k) {
+            Event e = heap[k];
+            while (2 * k + 1 < size) {
+                int j = 2 * k + 1;
+                if (j + 1 < size && heap[j + 1].compareTo(heap[j]) < 0) {
+                    j++;
+                }
+                if (e.compareTo(heap[j]) <= 0) {
+                    break;
+                }
+                heap[k] = heap[j];
+                k = j;
+            }
+            heap[k] = e;
+        }
+    }
+
     private static class Event implements Comparable<Event> {
 
         public double time;             // time till collision event
         public Body a, b;           // the paricles which shall collide
+        public int i = -1, j = -1;      // or their indices in the store, -1 for none
+        public boolean dropped;         // a body of the event was compacted out of the store
         public int countA, countB;      // collision counts at Event creation
 
         // creates a new event scheduled at given time involving a and b
@@ -162,6 +692,15 @@ public class  IncrementEvent {
             }
         }
 
+        // creates a new event scheduled at given time involving the i-th and j-th bodies of store
+        public Event(double time, int i, int j, BodyStore store) {
+            this.time = time;
+            this.i = i;
+            this.j = j;
+            countA = i >= 0 ? store.count(i) : -1;
+            countB = j >= 0 ? store.count(j) : -1;
+        }
+
         @Override
         public int compareTo(Event that) {
             double dt = this.time - that.time;
@@ -175,7 +714,17 @@ public class  IncrementEvent {
         }
 
         // has any intervening event has occured since creation of this event
-        public boolean isValid() {
+        // (store: the store of the bodies of the event, null for heap bodies)
+        public boolean isValid(BodyStore store) {
+            if (store != null) {
+                if (dropped) {
+                    return false;
+                }
+                if (i >= 0 && store.count(i) != countA) {
+                    return false;
+                }
+                return j < 0 || store.count(j) == countB;
+            }
             if (a != null && a.count() != countA) {
                 return false;
             }
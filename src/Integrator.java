@@ -0,0 +1,128 @@
+
+/**
+ * Advances the system by one gravity step, combining the velocity kicks
+ * given by a ForceSolver with the collision-aware drift of IncrementEvent.
+ * <p>
+ * EULER is the historical first order scheme (kick dt, then drift dt).
+ * LEAPFROG is the second order symplectic kick-drift-kick scheme: half kick,
+ * drift, new forces, half kick. The forces of the final half kick are reused
+ * by the first half kick of the next step, so it costs one force evaluation
+ * per step like EULER.
+ * OMELYAN is Omelyan, Mryglod and Folk's optimized second order scheme
+ * (kick, drift, kick, drift, kick), with two force evaluations per step and
+ * an error constant about ten times smaller than LEAPFROG, allowing larger dt.
+ * <p>
+ * Higher order splittings (Yoshida, Forest-Ruth) need negative drift
+ * sub-steps, which the event driven collisions can't run backwards in time.
+ */
+public class Integrator {
+
+    public enum Scheme { EULER, LEAPFROG, OMELYAN }
+
+    // Omelyan's optimal weight for the outer kicks
+    private static final double LAMBDA = 0.1931833275037836;
+
+    private final IncrementEvent drift;   // collision-aware drift of the bodies
+    private ForceSolver solver;           // gravity
+    private Scheme scheme;
+    private boolean forcesCurrent;        // do the bodies hold the forces of their positions?
+
+    /**
+     * Constructor: creates an integrator of the bodies of drift.
+     *
+     * @param drift  the event driven collision system moving the bodies
+     * @param solver the solver of the gravitational forces
+     * @param scheme the integration scheme
+     */
+    public Integrator(IncrementEvent drift, ForceSolver solver, Scheme scheme) {
+        this.drift = drift;
+        this.solver = solver;
+        this.scheme = scheme;
+        this.forcesCurrent = false;
+    }
+
+    /**
+     * Advances the system by dt.
+     *
+     * @param dt the timestep
+     */
+    public void step(double dt) {
+        switch (scheme) {
+            case EULER:
+                computeForces();
+                kick(dt);
+                drift.increment(dt);
+                forcesCurrent = false;
+                break;
+
+            case LEAPFROG:
+                if (!forcesCurrent)
+                    computeForces();
+                kick(0.5 * dt);
+                drift.increment(dt);
+                computeForces();
+                kick(0.5 * dt);
+                break;
+
+            case OMELYAN:
+                if (!forcesCurrent)
+                    computeForces();
+                kick(LAMBDA * dt);
+                drift.increment(0.5 * dt);
+                computeForces();
+                kick((1.0 - 2.0 * LAMBDA) * dt);
+                drift.increment(0.5 * dt);
+                computeForces();
+                kick(LAMBDA * dt);
+                break;
+        }
+    }
+
+    /**
+     * Tells the integrator the bodies were changed from outside, so the
+     * forces kept from the previous step must be computed again.
+     */
+    public void invalidateForces() {
+        forcesCurrent = false;
+    }
+
+    public void setScheme(Scheme scheme) {
+        this.scheme = scheme;
+        forcesCurrent = false;
+    }
+
+    public Scheme scheme() {
+        return scheme;
+    }
+
+    public void setSolver(ForceSolver solver) {
+        this.solver = solver;
+        forcesCurrent = false;
+    }
+
+    public ForceSolver solver() {
+        return solver;
+    }
+
+    private void computeForces() {
+        BodyStore store = drift.store();
+        if (store != null)
+            solver.computeForces(store);
+        else
+            solver.computeForces(drift.bodies());
+        forcesCurrent = true;
+    }
+
+    private void kick(double dt) {
+        BodyStore store = drift.store();
+        if (store != null) {
+            int n = store.size();
+            for (int i = 0; i < n; i++)
+                store.updateVelocity(i, dt);
+        }
+        else {
+            for (Body b : drift.bodies())
+                b.updateVelocity(dt);
+        }
+    }
+}
@@ -32,6 +32,26 @@ public class NBodySystem {
         return C1 * min_rv_ratio;
     }
 
+    /**
+     * Same as dynamicDt(Body[], double) for the bodies of a store
+     */
+    public static double dynamicDt(BodyStore store, double C1){
+
+        double min_rv_ratio = 0.2;
+        double vmax = 0.0;
+
+        for(int i = 0; i < store.size(); i++){
+            vmax = Math.max(Math.abs(store.vx(i)), Math.abs(store.vy(i)) );
+            if(vmax == 0.0)
+                continue;
+            double rv_ratio = store.radius(i) / vmax;
+            if(min_rv_ratio > rv_ratio){
+                min_rv_ratio = rv_ratio; 
+            }
+        }
+        return C1 * min_rv_ratio;
+    }
+
     /**
      * Auxiliary function to dynamically modify re-draw hz according to dt
      */    
@@ -42,13 +62,88 @@ public class NBodySystem {
         return 1.0/(C2*dt) ;
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws java.io.IOException {
         
         StdDraw.setCanvasSize(700,700);
 
-        String gui_terminal = StdIn.readString();
-        double map_radius = StdIn.readDouble();      // map_radius of universe
-        int N = StdIn.readInt();                 // number of particles
+        // "merge" lets colliding bodies coalesce instead of bouncing off,
+        // "store=<file>" runs the simulation in place on a BodyStore mapped onto the file
+        // (off the heap, and readable by other processes while it runs),
+        // "load=<file>" starts from a BodyStore file instead of reading StdIn,
+        // "scheme=euler|leapfrog|omelyan" selects the integrator (leapfrog by default),
+        // "feed=<file>" publishes the frames to a shared memory FrameFeed,
+        // "solver=tree|pm|treepm" selects the gravity solver (Barnes-Hut tree by default)
+        String storePath = null;
+        String loadPath = null;
+        String solver = "tree";
+        String feedPath = null;
+        Integrator.Scheme scheme = Integrator.Scheme.LEAPFROG;
+        for (String arg : args) {
+            if (arg.equals("merge"))
+                Body.useMerging(true);
+            else if (arg.startsWith("store="))
+                storePath = arg.substring("store=".length());
+            else if (arg.startsWith("load="))
+                loadPath = arg.substring("load=".length());
+            else if (arg.startsWith("feed="))
+                feedPath = arg.substring("feed=".length());
+            else if (arg.startsWith("solver="))
+                solver = arg.substring("solver=".length());
+            else if (arg.startsWith("scheme="))
+                scheme = Integrator.Scheme.valueOf(arg.substring("scheme=".length()).toUpperCase());
+        }
+
+        if (storePath != null && !solver.equals("tree"))
+            throw new IllegalArgumentException("solver=" + solver + " only works on heap bodies, without store=");
+
+        double map_radius;      // map_radius of universe
+        int N;                  // number of particles
+        Body[] bodies = null;   // array of N bodies, unless they are in store
+        BodyStore store = null; // the N bodies, with store=
+
+        if (loadPath != null) {
+            // read in the bodies of a checkpoint
+            BodyStore checkpoint = BodyStore.open(loadPath);
+            map_radius = checkpoint.mapRadius();
+            N = checkpoint.size();
+            if (storePath != null) {
+                store = BodyStore.map(storePath, N, map_radius);
+                store.copyFrom(checkpoint);
+            }
+            else
+                bodies = checkpoint.read();
+        }
+        else {
+            String gui_terminal = StdIn.readString();
+            map_radius = StdIn.readDouble();
+            N = StdIn.readInt();
+
+            // read in and initialize bodies
+            if (storePath != null)
+                store = BodyStore.map(storePath, N, map_radius);
+            else
+                bodies = new Body[N];
+            for (int i = 0; i < N; i++) {
+                double px   = StdIn.readDouble();
+                double py   = StdIn.readDouble();
+                double vx   = StdIn.readDouble();
+                double vy   = StdIn.readDouble();
+                double radius = StdIn.readDouble();
+                double mass = StdIn.readDouble();
+                int red     = StdIn.readInt();
+                int green   = StdIn.readInt();
+                int blue    = StdIn.readInt();
+                Color color = new Color(red, green, blue);
+
+                Body b      = new Body(px, py, vx, vy, mass, color, radius);
+                if (store != null)
+                    store.put(i, b);
+                else
+                    bodies[i] = b;
+            }
+            if (store != null)
+                store.setSize(N);
+        }
 
         // turn on animation mode and rescale coordinate system
         StdDraw.show(0);
@@ -56,69 +151,27 @@ public class NBodySystem {
         StdDraw.setXscale(0, +map_radius);
         StdDraw.setYscale(0, +map_radius);
 
-        // read in and initialize bodies
-        Body[] bodies = new Body[N];               // array of N bodies
-        for (int i = 0; i < N; i++) {
-            double px   = StdIn.readDouble();
-            double py   = StdIn.readDouble();
-            double vx   = StdIn.readDouble();
-            double vy   = StdIn.readDouble();
-            double radius = StdIn.readDouble();
-            double mass = StdIn.readDouble();
-            int red     = StdIn.readInt();
-            int green   = StdIn.readInt();
-            int blue    = StdIn.readInt();
-            Color color = new Color(red, green, blue);
-
-            bodies[i]   = new Body(px, py, vx, vy, mass, color, radius);
-        }
-
 
         // You can't modify C1 and C2 casually since it may cause a bug ...
         // final double C1 = 0.3 or 0.8, C2 = 0.8;  
         final double C1 = 0.8, C2 = 0.8;
-        double dt = 1.0; 
-        double hz = 30.0;
-
-        IncrementEvent increment_sys = new IncrementEvent(bodies, 0.0, map_radius, 0.0, map_radius);
-
-        // set dt for first loop
-        dt = dynamicDt(bodies, C1); 
-        hz = dynamicHz(dt, C2);
-        increment_sys.setRedrawHZ(hz);        
-
-        // (lzj) (test)
-        StdOut.printf("\nInitial : dt=%.7f, hz=%.7f \n\n",dt,hz);   
-        
-        for (double t = 0.0; true; t = t + dt) {
-
-            Quad quad = new Quad(0.5*map_radius, 0.5*map_radius, map_radius * 2);
-            BHTree tree = new BHTree(quad);
-
-            // build the Barnes-Hut tree
-            for (int i = 0; i < N; i++)
-                if (bodies[i].in(quad))
-                   tree.insert(bodies[i]);
-        
-            // update the forces, velocities, and accelerations
-            for (int i = 0; i < N; i++) {
-                bodies[i].resetForce();
-                tree.updateForce(bodies[i]);
-                bodies[i].updateVelocity(dt);
-            }
-
-            // after update velocity, use event base method to execute increment
-            increment_sys.increment(dt);
-
-            // dynamically change dt and hz for next loop
-            dt = dynamicDt(bodies, C1);
-            hz = dynamicHz(dt, C2);
-            increment_sys.setRedrawHZ(hz);
-
-            // (lzj) (test) 
-            StdOut.printf("dt=%.3f, hz=%.3f \n",dt,hz);
-
-        }
-
+        final int FEED_SLOTS = 4;          // frames kept in the shared memory feed
+        final int PM_GRID = 256;           // cells per side of the particle-mesh grid
+
+        Simulation sim = store != null ? new Simulation(store, true) : new Simulation(bodies, map_radius, true);
+        sim.setTimestepFactors(C1, C2);
+        sim.integrator().setScheme(scheme);
+        if (solver.equals("pm"))
+            sim.integrator().setSolver(new PMSolver(sim.quad(), PM_GRID));
+        else if (solver.equals("treepm"))
+            sim.integrator().setSolver(PMSolver.treePM(sim.quad(), PM_GRID, Simulation.LEAF_BUCKET));
+        if (feedPath != null)
+            sim.collisions().setFrameFeed(FrameFeed.create(feedPath, N, FEED_SLOTS));
+
+        // report the dynamic timestep
+        StdOut.printf("\nInitial : dt=%.7f, hz=%.7f \n\n", sim.dt(), dynamicHz(sim.dt(), C2));
+        sim.addListener(s -> StdOut.printf("dt=%.3f, hz=%.3f \n", s.dt(), dynamicHz(s.dt(), C2)));
+
+        sim.run(Double.POSITIVE_INFINITY);
     }
 }
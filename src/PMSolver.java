@@ -0,0 +1,276 @@
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Particle-mesh force solver, optionally with a short-range tree correction (TreePM).
+ * <p>
+ * The masses are assigned to an M x M grid over the root quadrant with
+ * cloud-in-cell (CIC) weights, the potential is the convolution of the mass
+ * grid with the Green's function -G / r, computed with FFTs on a zero-padded
+ * 2M x 2M grid (isolated boundaries), and the accelerations are the finite
+ * differences of the potential, interpolated back to the bodies with the same
+ * CIC weights. Each step costs O(N + M^2 log M).
+ * <p>
+ * With a split scale rs > 0, the mesh only carries the long-range part of the
+ * interaction (Green's function -G erf(r / 2rs) / r) and the short-range
+ * remainder, which vanishes beyond RCUT * rs, is added by walking a BHTree.
+ * Bodies outside of the root quadrant get no mesh force.
+ */
+public class PMSolver implements ForceSolver {
+
+    // short-range forces are neglected beyond RCUT split scales
+    public static final double RCUT = 4.5;
+
+    private final Quad quad;        // region covered by the mesh
+    private final int M;            // cells per side of the mesh
+    private final int P;            // cells per side of the padded mesh
+    private final double h;         // cell size
+    private final double x0, y0;    // lower left corner of the mesh
+    private final double rs;        // split scale, 0 for pure PM
+    private final int bucketSize;   // leaves of the short-range trees
+
+    private final double[] greenRe, greenIm;   // transform of the Green's function
+    private final double[] re, im;             // padded mesh, reused across steps
+    private final double[] ax, ay;             // accelerations on the mesh
+    private final double[] cos, sin;           // FFT twiddle factors
+    private BHTree tree;                       // short-range tree, rebuilt in place at each step
+
+    /**
+     * Constructor: creates a pure particle-mesh solver.
+     *
+     * @param quad the region covered by the mesh
+     * @param M    the number of cells per side, a power of 2
+     */
+    public PMSolver(Quad quad, int M) {
+        this(quad, M, 0.0, 1);
+    }
+
+    /**
+     * Constructor: creates a TreePM solver, or a pure PM one if rs is 0.
+     *
+     * @param quad       the region covered by the mesh
+     * @param M          the number of cells per side, a power of 2
+     * @param rs         the split scale between mesh and tree forces
+     * @param bucketSize the maximum number of bodies in a leaf of the tree
+     */
+    public PMSolver(Quad quad, int M, double rs, int bucketSize) {
+        if (M < 2 || (M & (M - 1)) != 0)
+            throw new IllegalArgumentException("mesh size must be a power of 2");
+        this.quad = quad;
+        this.M = M;
+        this.P = 2 * M;
+        this.h = quad.length() / M;
+        this.x0 = quad.xmid() - quad.length() / 2.0;
+        this.y0 = quad.ymid() - quad.length() / 2.0;
+        this.rs = rs;
+        this.bucketSize = bucketSize;
+
+        this.re = new double[P * P];
+        this.im = new double[P * P];
+        this.ax = new double[M * M];
+        this.ay = new double[M * M];
+        this.cos = new double[P / 2];
+        this.sin = new double[P / 2];
+        for (int k = 0; k < P / 2; k++) {
+            cos[k] = Math.cos(2.0 * Math.PI * k / P);
+            sin[k] = Math.sin(2.0 * Math.PI * k / P);
+        }
+
+        // Green's function on the padded mesh, negative offsets wrapped around
+        this.greenRe = new double[P * P];
+        this.greenIm = new double[P * P];
+        for (int i = 0; i < P; i++) {
+            for (int j = 0; j < P; j++) {
+                int di = i < M ? i : i - P;
+                int dj = j < M ? j : j - P;
+                greenRe[i * P + j] = green(h * Math.sqrt(di * di + dj * dj));
+            }
+        }
+        fft(greenRe, greenIm, false);
+    }
+
+    /**
+     * Returns a TreePM solver with a split scale of 2 mesh cells. The CIC
+     * smoothing of the mesh is not deconvolved, so the split is kept wider
+     * than the usual 1.25 cells to stay around 1% accurate at the split.
+     *
+     * @param quad       the region covered by the mesh
+     * @param M          the number of cells per side, a power of 2
+     * @param bucketSize the maximum number of bodies in a leaf of the tree
+     * @return           the TreePM solver
+     */
+    public static PMSolver treePM(Quad quad, int M, int bucketSize) {
+        return new PMSolver(quad, M, 2.0 * quad.length() / M, bucketSize);
+    }
+
+    // potential per unit mass at distance r from a unit mass, mesh part
+    private double green(double r) {
+        if (rs > 0.0) {
+            if (r == 0.0)
+                return -Body.G / (rs * Math.sqrt(Math.PI));
+            return -Body.G * (1.0 - erfc(r / (2.0 * rs))) / r;
+        }
+        // the mass of a cell acts on itself as if it was half a cell away
+        return -Body.G / Math.max(r, 0.5 * h);
+    }
+
+    public void computeForces(Body[] bodies) {
+        for (Body b : bodies)
+            b.resetForce();
+
+        // CIC mass assignment on the unpadded part of the mesh
+        Arrays.fill(re, 0.0);
+        Arrays.fill(im, 0.0);
+        for (Body b : bodies) {
+            if (!b.in(quad))
+                continue;
+            double gx = (b.rx - x0) / h - 0.5;
+            double gy = (b.ry - y0) / h - 0.5;
+            int i = (int) Math.floor(gx);
+            int j = (int) Math.floor(gy);
+            double fx = gx - i, fy = gy - j;
+            deposit(i,     j,     (1 - fx) * (1 - fy) * b.mass());
+            deposit(i + 1, j,     fx * (1 - fy) * b.mass());
+            deposit(i,     j + 1, (1 - fx) * fy * b.mass());
+            deposit(i + 1, j + 1, fx * fy * b.mass());
+        }
+
+        // potential = mass convolved with the Green's function
+        fft(re, im, false);
+        for (int k = 0; k < P * P; k++) {
+            double r = re[k] * greenRe[k] - im[k] * greenIm[k];
+            double i = re[k] * greenIm[k] + im[k] * greenRe[k];
+            re[k] = r;
+            im[k] = i;
+        }
+        fft(re, im, true);
+
+        // accelerations by centered differences of the potential (one-sided on the border)
+        for (int i = 0; i < M; i++) {
+            for (int j = 0; j < M; j++) {
+                int il = Math.max(i - 1, 0), ir = Math.min(i + 1, M - 1);
+                int jl = Math.max(j - 1, 0), jr = Math.min(j + 1, M - 1);
+                ax[i * M + j] = -(re[ir * P + j] - re[il * P + j]) / ((ir - il) * h);
+                ay[i * M + j] = -(re[i * P + jr] - re[i * P + jl]) / ((jr - jl) * h);
+            }
+        }
+
+        // CIC interpolation back to the bodies
+        for (Body b : bodies) {
+            if (!b.in(quad))
+                continue;
+            double gx = (b.rx - x0) / h - 0.5;
+            double gy = (b.ry - y0) / h - 0.5;
+            int i = (int) Math.floor(gx);
+            int j = (int) Math.floor(gy);
+            double fx = gx - i, fy = gy - j;
+            double w00 = (1 - fx) * (1 - fy), w10 = fx * (1 - fy), w01 = (1 - fx) * fy, w11 = fx * fy;
+            double gax = w00 * mesh(ax, i, j) + w10 * mesh(ax, i + 1, j)
+                       + w01 * mesh(ax, i, j + 1) + w11 * mesh(ax, i + 1, j + 1);
+            double gay = w00 * mesh(ay, i, j) + w10 * mesh(ay, i + 1, j)
+                       + w01 * mesh(ay, i, j + 1) + w11 * mesh(ay, i + 1, j + 1);
+            b.addForce(b.mass() * gax, b.mass() * gay);
+        }
+
+        if (rs > 0.0)
+            shortRange(bodies);
+    }
+
+    // short-range part of the forces from a Barnes-Hut tree
+    private void shortRange(Body[] bodies) {
+        if (tree == null)
+            tree = new BHTree(quad, bucketSize);
+        else
+            tree.clear();
+        for (Body b : bodies)
+            if (b.in(quad))
+                tree.insert(b);
+        for (Body b : bodies)
+            tree.updateShortRangeForce(b, rs, RCUT * rs);
+    }
+
+    private void deposit(int i, int j, double m) {
+        if (i >= 0 && i < M && j >= 0 && j < M)
+            re[i * P + j] += m;
+    }
+
+    private double mesh(double[] a, int i, int j) {
+        if (i < 0 || i >= M || j < 0 || j >= M)
+            return 0.0;
+        return a[i * M + j];
+    }
+
+    /**
+     * Returns the fraction of the force between two bodies at distance r
+     * that is not carried by the mesh of split scale rs.
+     *
+     * @param r  the distance between the bodies
+     * @param rs the split scale
+     * @return   the short-range fraction of the force
+     */
+    public static double shortRangeFactor(double r, double rs) {
+        double u = r / (2.0 * rs);
+        return erfc(u) + 2.0 * u / Math.sqrt(Math.PI) * Math.exp(-u * u);
+    }
+
+    // complementary error function (Numerical Recipes, relative error below 1.2e-7)
+    private static double erfc(double x) {
+        double z = Math.abs(x);
+        double t = 1.0 / (1.0 + 0.5 * z);
+        double ans = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418
+                   + t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587
+                   + t * (-0.82215223 + t * 0.17087277)))))))));
+        return x >= 0 ? ans : 2.0 - ans;
+    }
+
+    /**
+     * In-place 2D FFT of the P x P mesh (re, im), rows then columns.
+     * The inverse transform is normalized.
+     */
+    private void fft(double[] re, double[] im, boolean inverse) {
+        IntStream.range(0, P).parallel().forEach(i -> fft(re, im, i * P, 1, inverse));
+        IntStream.range(0, P).parallel().forEach(j -> fft(re, im, j, P, inverse));
+        if (inverse) {
+            double scale = 1.0 / ((double) P * P);
+            for (int k = 0; k < P * P; k++) {
+                re[k] *= scale;
+                im[k] *= scale;
+            }
+        }
+    }
+
+    // iterative radix-2 FFT of the P values at offset, offset + stride, ...
+    private void fft(double[] re, double[] im, int offset, int stride, boolean inverse) {
+        // bit reversal permutation
+        for (int i = 1, j = 0; i < P; i++) {
+            int bit = P >> 1;
+            for (; (j & bit) != 0; bit >>= 1)
+                j ^= bit;
+            j ^= bit;
+            if (i < j) {
+                int a = offset + i * stride, b = offset + j * stride;
+                double t = re[a]; re[a] = re[b]; re[b] = t;
+                t = im[a]; im[a] = im[b]; im[b] = t;
+            }
+        }
+
+        // butterflies
+        double sign = inverse ? 1.0 : -1.0;
+        for (int len = 2; len <= P; len <<= 1) {
+            int step = P / len;
+            for (int i = 0; i < P; i += len) {
+                for (int k = 0; k < len / 2; k++) {
+                    double wr = cos[k * step], wi = sign * sin[k * step];
+                    int a = offset + (i + k) * stride;
+                    int b = offset + (i + k + len / 2) * stride;
+                    double tr = re[b] * wr - im[b] * wi;
+                    double ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
@@ -31,6 +31,70 @@ public class Quad {
         return length;
     }
 
+    /**
+     * Returns the x-coordinate of the center of the quadrant.
+     *
+     * @return x-coordinate of center of quadrant
+     */
+    public double xmid() {
+        return xmid;
+    }
+
+    /**
+     * Returns the y-coordinate of the center of the quadrant.
+     *
+     * @return y-coordinate of center of quadrant
+     */
+    public double ymid() {
+        return ymid;
+    }
+
+    /**
+     * Returns the distance between (x, y) and the closest point of the
+     * quadrant, 0 if the quadrant contains (x, y).
+     *
+     * @param x x-coordinate of the point
+     * @param y y-coordinate of the point
+     * @return  distance from (x, y) to this quadrant
+     */
+    public double distanceTo(double x, double y) {
+        double halfLen = this.length / 2.0;
+        double dx = Math.max(0.0, Math.abs(x - this.xmid) - halfLen);
+        double dy = Math.max(0.0, Math.abs(y - this.ymid) - halfLen);
+        return Math.sqrt(dx*dx + dy*dy);
+    }
+
+    /**
+     * Returns the distance between (x, y) and the farthest point of the quadrant.
+     *
+     * @param x x-coordinate of the point
+     * @param y y-coordinate of the point
+     * @return  distance from (x, y) to the farthest corner of this quadrant
+     */
+    public double maxDistanceTo(double x, double y) {
+        double halfLen = this.length / 2.0;
+        double dx = Math.abs(x - this.xmid) + halfLen;
+        double dy = Math.abs(y - this.ymid) + halfLen;
+        return Math.sqrt(dx*dx + dy*dy);
+    }
+
+    /**
+     * Does this quadrant intersect the rectangle [xlo, xhi] x [ylo, yhi]?
+     *
+     * @param xlo minimum x-coordinate of the rectangle
+     * @param xhi maximum x-coordinate of the rectangle
+     * @param ylo minimum y-coordinate of the rectangle
+     * @param yhi maximum y-coordinate of the rectangle
+     * @return    true if the quadrant and the rectangle overlap, else false
+     */
+    public boolean intersects(double xlo, double xhi, double ylo, double yhi) {
+        double halfLen = this.length / 2.0;
+        return (xlo <= this.xmid + halfLen &&
+                xhi >= this.xmid - halfLen &&
+                ylo <= this.ymid + halfLen &&
+                yhi >= this.ymid - halfLen);
+    }
+
     /**
      * Does this quadrant contain (x, y)?
      *
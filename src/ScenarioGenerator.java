@@ -0,0 +1,403 @@
+import java.awt.Color;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Generates large initial conditions for NBodySystem.
+ * <p>
+ * The bodies are generated in chunks of CHUNK bodies, in parallel, each chunk
+ * drawing from its own random generator seeded by (seed, chunk index), so the
+ * output only depends on the seed and not on the number of threads.
+ * No two bodies overlap at t = 0: the gas is placed on a jittered grid, and
+ * in the other scenarios a body overlapping another one of smaller index is
+ * drawn again from its own random stream (see separate()).
+ * The output is streamed chunk after chunk either in the text input format of
+ * NBodySystem or, for a file name ending with ".bin", into a BodyStore file
+ * that NBodySystem loads with load=file.
+ * <p>
+ * All scenarios live in the unit square (map_radius = 1). The light bodies
+ * of the gravitating scenarios share a mass M with G * M = GM, and each
+ * central body is as heavy as the disk around it.
+ * <ul>
+ * <li>plummer: Plummer sphere projected on the plane, with isotropic velocities</li>
+ * <li>disk: exponential disk on circular orbits around a central mass</li>
+ * <li>pair: two counter-rotating disks falling onto each other</li>
+ * <li>gas: uniform gas of non-overlapping light bodies with random velocities, dominated by collisions</li>
+ * </ul>
+ * Usage: java ScenarioGenerator plummer|disk|pair|gas n [seed] [output file]
+ */
+public class ScenarioGenerator {
+
+    public enum Scenario { PLUMMER, DISK, PAIR, GAS }
+
+    private static final double GM = 0.01;         // G times the mass of the light bodies together
+    private static final double CENTRAL_RADIUS = 0.005;   // radius of the central bodies
+    private static final double MAP_RADIUS = 1.0;  // size of the universe
+    private static final int CHUNK = 1 << 14;      // bodies per chunk (and per random stream)
+    private static final int BATCH = 64;           // chunks generated in parallel before being written
+
+    private final Scenario scenario;
+    private final long n;
+    private final long seed;
+    private final double mass;     // mass of one (non central) body
+    private final double radius;   // radius of one (non central) body
+    private final int cells;       // gas: cells per side of the placement grid
+    private byte[] redraws;        // number of times each body was drawn again, null until separate()
+
+    /**
+     * Constructor: creates a generator of n bodies.
+     *
+     * @param scenario the kind of initial conditions
+     * @param n        the number of bodies
+     * @param seed     the seed of the random streams
+     */
+    public ScenarioGenerator(Scenario scenario, long n, long seed) {
+        if (n < centralBodies(scenario) + 1)
+            throw new IllegalArgumentException("too few bodies for " + scenario);
+        this.scenario = scenario;
+        this.n = n;
+        this.seed = seed;
+
+        // keep the bodies small compared to their mean spacing
+        double spacing = MAP_RADIUS / Math.sqrt(n);
+        this.cells = (int) Math.ceil(Math.sqrt(n));
+        if (scenario == Scenario.GAS) {
+            this.mass = 1e-3 / Body.G / n;        // negligible gravity
+            this.radius = 0.15 * MAP_RADIUS / cells;
+        } else {
+            this.mass = GM / Body.G / n;
+            this.radius = 0.02 * spacing;
+        }
+    }
+
+    // number of heavy central bodies, stored first
+    private static int centralBodies(Scenario scenario) {
+        switch (scenario) {
+            case DISK: return 1;
+            case PAIR: return 2;
+            default:   return 0;
+        }
+    }
+
+    /**
+     * Returns the i-th body of the scenario. The bodies of a chunk must be
+     * generated in order with the random stream of that chunk.
+     */
+    private Body body(long i, SplittableRandom rng) {
+        switch (scenario) {
+            case PLUMMER:
+                return plummer(rng);
+            case DISK:
+                if (i == 0)
+                    return new Body(0.5, 0.5, 0.0, 0.0, GM / Body.G, Color.BLACK, CENTRAL_RADIUS);
+                return disk(rng, 0.5, 0.5, 0.0, 0.0, 0.08, GM, 1.0, new Color(255, 255, 0));
+            case PAIR:
+                // the two halves approach each other on an off-center trajectory
+                if (i == 0)
+                    return new Body(0.3, 0.4, 0.03, 0.01, 0.5 * GM / Body.G, Color.BLACK, CENTRAL_RADIUS);
+                if (i == 1)
+                    return new Body(0.7, 0.6, -0.03, -0.01, 0.5 * GM / Body.G, Color.BLACK, CENTRAL_RADIUS);
+                if (i % 2 == 0)
+                    return disk(rng, 0.3, 0.4, 0.03, 0.01, 0.04, 0.5 * GM, 1.0, new Color(255, 128, 0));
+                return disk(rng, 0.7, 0.6, -0.03, -0.01, 0.04, 0.5 * GM, -1.0, new Color(0, 160, 255));
+            default:
+                return gas(i, rng);
+        }
+    }
+
+    // Plummer sphere of scale radius a, truncated to the map
+    private Body plummer(SplittableRandom rng) {
+        double a = 0.05;
+        double r;
+        do {
+            r = a / Math.sqrt(Math.pow(rng.nextDouble(1e-12, 1.0), -2.0 / 3.0) - 1.0);
+        } while (r > 8 * a);
+
+        // escape velocity fraction q from g(q) = q^2 (1 - q^2)^3.5 (Aarseth et al.)
+        double q;
+        do {
+            q = rng.nextDouble();
+        } while (0.1 * rng.nextDouble() > q * q * Math.pow(1.0 - q * q, 3.5));
+        double v = q * Math.sqrt(2.0 * GM / a) * Math.pow(1.0 + r * r / (a * a), -0.25);
+
+        // isotropic directions in space, projected on the plane
+        double[] p = isotropic(rng, r);
+        double[] u = isotropic(rng, v);
+        return new Body(0.5 + p[0], 0.5 + p[1], u[0], u[1], mass, new Color(200, 0, 0), radius);
+    }
+
+    // vector of length len with an isotropic direction, first two components
+    private static double[] isotropic(SplittableRandom rng, double len) {
+        double z = rng.nextDouble(-1.0, 1.0);
+        double phi = rng.nextDouble(0.0, 2.0 * Math.PI);
+        double s = Math.sqrt(1.0 - z * z);
+        return new double[] { len * s * Math.cos(phi), len * s * Math.sin(phi) };
+    }
+
+    // exponential disk of scale length rd around a central mass gm / G, spinning in direction spin
+    private Body disk(SplittableRandom rng, double cx, double cy, double vcx, double vcy,
+                      double rd, double gm, double spin, Color color) {
+        // the radius of an exponential disk follows a Gamma(2, rd) distribution
+        double r;
+        do {
+            r = -rd * Math.log(rng.nextDouble(1e-12, 1.0) * rng.nextDouble(1e-12, 1.0));
+        } while (r > 5 * rd || r < 0.1 * rd);
+        double phi = rng.nextDouble(0.0, 2.0 * Math.PI);
+
+        // circular velocity from the central mass and the disk mass inside r
+        double x = r / rd;
+        double enclosed = gm * (1.0 + (1.0 - (1.0 + x) * Math.exp(-x)));
+        double v = Math.sqrt(enclosed / r) * (1.0 + 0.05 * rng.nextGaussian());
+
+        double px = cx + r * Math.cos(phi);
+        double py = cy + r * Math.sin(phi);
+        double vx = vcx - spin * v * Math.sin(phi);
+        double vy = vcy + spin * v * Math.cos(phi);
+        return new Body(px, py, vx, vy, mass, color, radius);
+    }
+
+    // uniform gas inside the walls: body i is jittered inside its own cell
+    // of a grid, so no two bodies overlap and none crosses a wall
+    private Body gas(long i, SplittableRandom rng) {
+        double cell = MAP_RADIUS / cells;
+        double jitter = 0.5 * cell - radius;
+        double px = (i % cells + 0.5) * cell + rng.nextDouble(-jitter, jitter);
+        double py = (i / cells + 0.5) * cell + rng.nextDouble(-jitter, jitter);
+        double vx = rng.nextDouble(-0.05, 0.05);
+        double vy = rng.nextDouble(-0.05, 0.05);
+        return new Body(px, py, vx, vy, mass, new Color(0, 0, 200), radius);
+    }
+
+    // generates the bodies of chunk c
+    private Body[] chunk(long c) {
+        SplittableRandom rng = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + c);
+        long first = c * CHUNK;
+        int size = (int) Math.min(CHUNK, n - first);
+        Body[] bodies = new Body[size];
+        for (int i = 0; i < size; i++) {
+            bodies[i] = body(first + i, rng);
+            if (redraws != null && redraws[(int) (first + i)] > 0)
+                bodies[i] = body(first + i, redrawRandom(first + i, redraws[(int) (first + i)]));
+        }
+        return bodies;
+    }
+
+    // random stream of the k-th redraw of body i
+    private SplittableRandom redrawRandom(long i, int k) {
+        return new SplittableRandom((seed * 0x9E3779B97F4A7C15L + i) * 0xBF58476D1CE4E5B9L + k);
+    }
+
+    /**
+     * Makes sure no two bodies overlap, which would give them collision
+     * times in the past. The bodies are drawn once (in parallel, chunk by
+     * chunk) and sorted by cell of a grid at least one diameter wide. Every
+     * body overlapping a central body or a body of smaller index is then
+     * drawn again, in index order, from its own random stream until it
+     * overlaps none of the bodies kept so far. The result only depends on
+     * the seed; redraws records which stream gives the final body.
+     */
+    private void separate() {
+        if (scenario == Scenario.GAS || redraws != null)
+            return;     // the gas grid never overlaps
+        if (n > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("too many bodies to separate");
+        int count = (int) n;
+        int first = centralBodies(scenario);
+
+        double[] x = new double[count];
+        double[] y = new double[count];
+        IntStream.range(0, (int) chunks()).parallel().forEach(c -> {
+            Body[] bodies = chunk(c);
+            for (int i = 0; i < bodies.length; i++) {
+                x[c * CHUNK + i] = bodies[i].rx;
+                y[c * CHUNK + i] = bodies[i].ry;
+            }
+        });
+
+        // light bodies sorted by cell: cell * count + index
+        int g = (int) Math.max(1.0, Math.min(MAP_RADIUS / (2.0 * radius), Math.sqrt((double) Long.MAX_VALUE / count)));
+        long[] keys = new long[count - first];
+        IntStream.range(first, count).parallel().forEach(i -> keys[i - first] = cell(x[i], y[i], g) * count + i);
+        Arrays.parallelSort(keys);
+
+        boolean[] redraw = new boolean[count];
+        IntStream.range(first, count).parallel().forEach(i ->
+            redraw[i] = overlapsCentral(x, y, first, x[i], y[i])
+                     || overlapsAny(keys, x, y, count, g, x[i], y[i], j -> j < i));
+
+        // draw again in index order, against the kept bodies and the redrawn ones placed so far
+        redraws = new byte[count];
+        HashMap<Long, ArrayList<Integer>> placed = new HashMap<>();
+        for (int i = first; i < count; i++) {
+            if (!redraw[i])
+                continue;
+            for (int k = 1; ; k++) {
+                if (k > Byte.MAX_VALUE)
+                    throw new IllegalStateException("no room left for body " + i);
+                Body b = body(i, redrawRandom(i, k));
+                if (overlapsCentral(x, y, first, b.rx, b.ry)
+                    || overlapsAny(keys, x, y, count, g, b.rx, b.ry, j -> !redraw[j])
+                    || overlapsPlaced(placed, x, y, g, b.rx, b.ry))
+                    continue;
+                redraws[i] = (byte) k;
+                x[i] = b.rx;
+                y[i] = b.ry;
+                placed.computeIfAbsent(cell(b.rx, b.ry, g), key -> new ArrayList<>()).add(i);
+                break;
+            }
+        }
+    }
+
+    // cell of (px, py) in a g x g grid over the map, the outside clamped to the border cells
+    private static long cell(double px, double py, int g) {
+        long cx = Math.max(0, Math.min(g - 1, (long) Math.floor(px / MAP_RADIUS * g)));
+        long cy = Math.max(0, Math.min(g - 1, (long) Math.floor(py / MAP_RADIUS * g)));
+        return cx * g + cy;
+    }
+
+    private boolean overlapsCentral(double[] x, double[] y, int first, double px, double py) {
+        for (int j = 0; j < first; j++) {
+            double dx = x[j] - px, dy = y[j] - py;
+            if (dx * dx + dy * dy < (CENTRAL_RADIUS + radius) * (CENTRAL_RADIUS + radius))
+                return true;
+        }
+        return false;
+    }
+
+    // does a light body at (px, py) overlap one of the sorted bodies accepted by which?
+    private boolean overlapsAny(long[] keys, double[] x, double[] y, int count, int g,
+                                double px, double py, IntPredicate which) {
+        long c = cell(px, py, g);
+        long cx = c / g, cy = c % g;
+        for (long i = Math.max(0, cx - 1); i <= Math.min(g - 1, cx + 1); i++) {
+            for (long j = Math.max(0, cy - 1); j <= Math.min(g - 1, cy + 1); j++) {
+                long lo = (i * g + j) * count;
+                int k = Arrays.binarySearch(keys, lo);
+                for (k = k >= 0 ? k : -k - 1; k < keys.length && keys[k] < lo + count; k++) {
+                    int b = (int) (keys[k] - lo);
+                    if (which.test(b) && overlaps(x[b], y[b], px, py))
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean overlapsPlaced(HashMap<Long, ArrayList<Integer>> placed, double[] x, double[] y, int g,
+                                   double px, double py) {
+        long c = cell(px, py, g);
+        long cx = c / g, cy = c % g;
+        for (long i = Math.max(0, cx - 1); i <= Math.min(g - 1, cx + 1); i++) {
+            for (long j = Math.max(0, cy - 1); j <= Math.min(g - 1, cy + 1); j++) {
+                ArrayList<Integer> bodies = placed.get(i * g + j);
+                if (bodies == null)
+                    continue;
+                for (int b : bodies)
+                    if (overlaps(x[b], y[b], px, py))
+                        return true;
+            }
+        }
+        return false;
+    }
+
+    // do two light bodies at (ax, ay) and (bx, by) overlap?
+    private boolean overlaps(double ax, double ay, double bx, double by) {
+        double dx = ax - bx, dy = ay - by;
+        return dx * dx + dy * dy < 4.0 * radius * radius;
+    }
+
+    private long chunks() {
+        return (n + CHUNK - 1) / CHUNK;
+    }
+
+    /**
+     * Writes the scenario in the text input format of NBodySystem.
+     *
+     * @param out the destination
+     * @throws IOException if writing fails
+     */
+    public void writeText(Writer out) throws IOException {
+        separate();
+        out.write("terminal\n" + MAP_RADIUS + "\n" + n + "\n");
+        for (long c = 0; c < chunks(); c += BATCH) {
+            long from = c;
+            int batch = (int) Math.min(BATCH, chunks() - c);
+
+            // generate and format a batch of chunks in parallel, then write them in order
+            String[] text = IntStream.range(0, batch).parallel()
+                                     .mapToObj(k -> format(chunk(from + k)))
+                                     .toArray(String[]::new);
+            for (String s : text)
+                out.write(s);
+        }
+        out.flush();
+    }
+
+    private static String format(Body[] bodies) {
+        StringBuilder sb = new StringBuilder(bodies.length * 120);
+        for (Body b : bodies) {
+            Color color = b.color();
+            sb.append(b.rx).append(' ').append(b.ry).append(' ')
+              .append(b.vx).append(' ').append(b.vy).append(' ')
+              .append(b.radius).append(' ').append(b.mass()).append(' ')
+              .append(color.getRed()).append(' ').append(color.getGreen()).append(' ')
+              .append(color.getBlue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the scenario into a new BodyStore file.
+     *
+     * @param path the file to create
+     * @throws IOException if the file can't be created
+     */
+    public void writeStore(String path) throws IOException {
+        if (n > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("too many bodies for a BodyStore");
+        separate();
+        BodyStore store = BodyStore.map(path, (int) n, MAP_RADIUS);
+
+        // the chunks fill disjoint records of the mapped file
+        IntStream.range(0, (int) chunks()).parallel().forEach(c -> {
+            Body[] bodies = chunk(c);
+            for (int i = 0; i < bodies.length; i++)
+                store.put(c * CHUNK + i, bodies[i]);
+        });
+        store.setSize((int) n);
+        store.force();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: java ScenarioGenerator plummer|disk|pair|gas n [seed] [output file]");
+            System.exit(1);
+        }
+        Scenario scenario = Scenario.valueOf(args[0].toUpperCase());
+        long n = Long.parseLong(args[1]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 0L;
+        ScenarioGenerator generator = new ScenarioGenerator(scenario, n, seed);
+
+        if (args.length > 3 && args[3].endsWith(".bin")) {
+            generator.writeStore(args[3]);
+        } else if (args.length > 3) {
+            try (Writer out = Files.newBufferedWriter(Paths.get(args[3]), StandardCharsets.US_ASCII)) {
+                generator.writeText(out);
+            }
+        } else {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.US_ASCII));
+            generator.writeText(out);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+import java.util.ArrayList;
+
+/**
+ * Embeddable simulation engine: owns the bodies, the collision system,
+ * the force solver and the integrator, and advances them step by step.
+ * <p>
+ * The timestep follows the bodies like in NBodySystem: dt = C1 * (min r/v)
+ * and the redraw frequency is 1 / (C2 * dt). Without display the engine
+ * never touches StdDraw, so it can be driven in-process by benchmarks,
+ * batch runners and services.
+ * <p>
+ * A Simulation is not thread-safe, except for stop() which may be called
+ * from any thread (or from a listener) to end run().
+ */
+public class Simulation {
+
+    /**
+     * Called after each step of the simulation.
+     */
+    public interface Listener {
+        void stepped(Simulation sim);
+    }
+
+    public static final int LEAF_BUCKET = 8;            // bodies per leaf of the Barnes-Hut tree
+    public static final double REPREDICT_TOL = 0.05;    // path error (in radii) tolerated before re-predicting
+
+    private final double mapRadius;           // the universe is [0, mapRadius]^2
+    private final Quad quad;                  // root quadrant of the trees
+    private final IncrementEvent collisions;  // event driven collision system
+    private final Integrator integrator;
+    private final ArrayList<Listener> listeners = new ArrayList<Listener>();
+
+    private double C1 = 0.8, C2 = 0.8;        // timestep factors
+    private double dt;                        // timestep of the next step
+    private long steps;                       // number of steps done
+    private volatile boolean stopped;         // set by stop() to end run()
+
+    private BHTree tree;                      // tree of the current state, built on demand
+    private long treeStep = -1;               // step at which tree was built
+
+    /**
+     * Constructor: creates a simulation of the bodies in [0, mapRadius]^2,
+     * integrated with LEAPFROG and the Barnes-Hut forces.
+     *
+     * @param bodies    the bodies, owned by the simulation from now on
+     * @param mapRadius the side of the universe
+     * @param display   true to draw the bodies with StdDraw at each redraw
+     */
+    public Simulation(Body[] bodies, double mapRadius, boolean display) {
+        this(new IncrementEvent(bodies, 0.0, mapRadius, 0.0, mapRadius, display), mapRadius);
+    }
+
+    /**
+     * Constructor: creates a simulation of the bodies of store, which is
+     * updated in place (by index) at each step, in [0, store.mapRadius()]^2.
+     * The force solver must support stores, like the default TreeSolver.
+     *
+     * @param store   the bodies, owned by the simulation from now on
+     * @param display true to draw the bodies with StdDraw at each redraw
+     */
+    public Simulation(BodyStore store, boolean display) {
+        this(new IncrementEvent(store, 0.0, store.mapRadius(), 0.0, store.mapRadius(), display),
+             store.mapRadius());
+    }
+
+    private Simulation(IncrementEvent collisions, double mapRadius) {
+        this.mapRadius = mapRadius;
+        this.quad = new Quad(0.5*mapRadius, 0.5*mapRadius, mapRadius * 2);
+        this.collisions = collisions;
+        this.collisions.setRepredictTolerance(REPREDICT_TOL);
+        this.integrator = new Integrator(collisions, new TreeSolver(quad, LEAF_BUCKET), Integrator.Scheme.LEAPFROG);
+        updateTimestep();
+    }
+
+    // dynamically change dt and hz for the next step
+    private void updateTimestep() {
+        if (collisions.store() != null)
+            dt = NBodySystem.dynamicDt(collisions.store(), C1);
+        else
+            dt = NBodySystem.dynamicDt(collisions.bodies(), C1);
+        collisions.setRedrawHZ(NBodySystem.dynamicHz(dt, C2));
+    }
+
+    /**
+     * Advances the simulation by one step of dt() and notifies the listeners.
+     */
+    public void step() {
+        integrator.step(dt);
+        steps++;
+        updateTimestep();
+        for (Listener listener : listeners)
+            listener.stepped(this);
+    }
+
+    /**
+     * Advances the simulation by n steps, or fewer if stop() is called.
+     *
+     * @param n the number of steps
+     */
+    public void step(int n) {
+        stopped = false;
+        for (int i = 0; i < n && !stopped; i++)
+            step();
+    }
+
+    /**
+     * Advances the simulation until time() reaches until or stop() is called.
+     *
+     * @param until the simulation time to reach, may be infinite
+     */
+    public void run(double until) {
+        stopped = false;
+        while (!stopped && time() < until)
+            step();
+    }
+
+    /**
+     * Makes the current run() or step(n) return after the current step.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the live bodies. The array is replaced when merged bodies
+     * are compacted out, so it should be fetched again after each step.
+     *
+     * @return the bodies of the simulation, null if they are in a store()
+     */
+    public Body[] bodies() {
+        return collisions.bodies();
+    }
+
+    /**
+     * Returns the store the simulation runs on. Merged bodies are compacted
+     * out at the end of each step, which renumbers the following ones.
+     *
+     * @return the bodies of the simulation, null if they are on the heap
+     */
+    public BodyStore store() {
+        return collisions.store();
+    }
+
+    /**
+     * Returns a Barnes-Hut tree of the current state, for spatial queries.
+     * The tree is built at most once per step, in place of the previous one.
+     * For a simulation on a store, it holds heap copies of the bodies.
+     *
+     * @return the tree of the bodies at time()
+     */
+    public BHTree tree() {
+        if (treeStep != steps) {
+            if (tree == null)
+                tree = new BHTree(quad, LEAF_BUCKET);
+            else
+                tree.clear();
+            Body[] bodies = store() != null ? store().read() : bodies();
+            for (Body b : bodies)
+                if (b.in(quad))
+                    tree.insert(b);
+            treeStep = steps;
+        }
+        return tree;
+    }
+
+    /**
+     * @return the simulation time
+     */
+    public double time() {
+        return collisions.time();
+    }
+
+    /**
+     * @return the timestep of the next step
+     */
+    public double dt() {
+        return dt;
+    }
+
+    /**
+     * @return the number of steps done
+     */
+    public long steps() {
+        return steps;
+    }
+
+    public double mapRadius() {
+        return mapRadius;
+    }
+
+    /**
+     * @return the root quadrant of the force solvers
+     */
+    public Quad quad() {
+        return quad;
+    }
+
+    /**
+     * Sets the factors of the dynamic timestep and redraw frequency,
+     * see NBodySystem.
+     *
+     * @param C1 the timestep as a fraction of the minimum r/v
+     * @param C2 the redraw period as a fraction of the timestep
+     */
+    public void setTimestepFactors(double C1, double C2) {
+        this.C1 = C1;
+        this.C2 = C2;
+        updateTimestep();
+    }
+
+    /**
+     * @return the collision system, e.g. to set its tolerance or frame feed
+     */
+    public IncrementEvent collisions() {
+        return collisions;
+    }
+
+    /**
+     * @return the integrator, e.g. to change its scheme or force solver
+     */
+    public Integrator integrator() {
+        return integrator;
+    }
+}
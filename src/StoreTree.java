@@ -0,0 +1,319 @@
+import java.util.Arrays;
+
+/**
+ * Barnes-Hut tree over the bodies of a BodyStore, addressed by index: the
+ * same tree as a BHTree of the same bucket size built from the same bodies,
+ * with the same group walk, but kept in a few primitive arrays (quadrant,
+ * aggregate body, first child and bucket of each node) instead of one
+ * object per node and per body, so its heap footprint stays a small
+ * fraction of the bodies it is built over.
+ * <p>
+ * The four children of a node are consecutive: NW, NE, SW, SE. The arrays
+ * are kept by clear(), so rebuilding the tree at each step allocates
+ * nothing once they have grown to the size of the tree.
+ */
+public class StoreTree {
+
+    // threshold value, as in BHTree
+    private static final double Theta = 0.5;
+
+    private static final int NW = 0, NE = 1, SW = 2, SE = 3;
+
+    private final BodyStore store;    // the bodies
+    private final int bucketSize;     // maximum number of bodies in an external node
+
+    private int nodes;                // number of nodes in use, the root is node 0
+    private double[] xmid, ymid, len; // quadrant of each node
+    private double[] mass, cx, cy;    // aggregate body of each node
+    private int[] child;              // first of the four children, -1 for an external node
+    private int[] n;                  // number of bodies in the bucket of an external node
+    private int[] bucket;             // bodies of the external nodes, bucketSize per node
+
+    // interaction list of the current bucket (mass and position of each entry)
+    private double[] lm = new double[64], lx = new double[64], ly = new double[64];
+    private int ln;
+
+    /**
+     * Constructor: creates an empty tree of the bodies of store over quadrant q.
+     *
+     * @param store      the bodies
+     * @param q          the root quadrant
+     * @param bucketSize the maximum number of bodies in an external node
+     */
+    public StoreTree(BodyStore store, Quad q, int bucketSize) {
+        if (bucketSize < 1)
+            throw new IllegalArgumentException("bucket size must be positive");
+        this.store = store;
+        this.bucketSize = bucketSize;
+        allocate(64);
+        xmid[0] = q.xmid();
+        ymid[0] = q.ymid();
+        len[0] = q.length();
+        clear();
+    }
+
+    private void allocate(int capacity) {
+        xmid = new double[capacity];
+        ymid = new double[capacity];
+        len = new double[capacity];
+        mass = new double[capacity];
+        cx = new double[capacity];
+        cy = new double[capacity];
+        child = new int[capacity];
+        n = new int[capacity];
+        bucket = new int[capacity * bucketSize];
+    }
+
+    // makes room for four more nodes
+    private void grow() {
+        if (nodes + 4 <= child.length)
+            return;
+        int capacity = 2 * child.length;
+        xmid = Arrays.copyOf(xmid, capacity);
+        ymid = Arrays.copyOf(ymid, capacity);
+        len = Arrays.copyOf(len, capacity);
+        mass = Arrays.copyOf(mass, capacity);
+        cx = Arrays.copyOf(cx, capacity);
+        cy = Arrays.copyOf(cy, capacity);
+        child = Arrays.copyOf(child, capacity);
+        n = Arrays.copyOf(n, capacity);
+        bucket = Arrays.copyOf(bucket, capacity * bucketSize);
+    }
+
+    /**
+     * @return the store of the bodies of this tree
+     */
+    public BodyStore store() {
+        return store;
+    }
+
+    /**
+     * Empties the tree, keeping its arrays for the next build.
+     */
+    public void clear() {
+        nodes = 1;
+        child[0] = -1;
+        n[0] = 0;
+    }
+
+    private boolean isEmpty(int node) {
+        return child[node] < 0 && n[node] == 0;
+    }
+
+    private boolean contains(int node, double x, double y) {
+        double halfLen = len[node] / 2.0;
+        return (x <= xmid[node] + halfLen &&
+                x >= xmid[node] - halfLen &&
+                y <= ymid[node] + halfLen &&
+                y >= ymid[node] - halfLen);
+    }
+
+    /**
+     * Adds the i-th body of the store to the tree.
+     */
+    public void insert(int i) {
+        insert(0, i);
+    }
+
+    private void insert(int node, int i) {
+
+        // empty node: the body is the aggregate
+        if (isEmpty(node)) {
+            bucket[node * bucketSize] = i;
+            n[node] = 1;
+            mass[node] = store.mass(i);
+            cx[node] = store.rx(i);
+            cy[node] = store.ry(i);
+            return;
+        }
+
+        // internal node
+        if (child[node] >= 0) {
+            aggregate(node, i);
+            putBody(node, i);
+        }
+
+        // external node with room left in its bucket
+        else if (n[node] < bucketSize) {
+            bucket[node * bucketSize + n[node]++] = i;
+            aggregate(node, i);
+        }
+
+        // full external node: subdivide it
+        else {
+            grow();
+            int c = nodes;
+            nodes += 4;
+            child[node] = c;
+            double x = xmid[node], y = ymid[node], l = len[node];
+            quadrant(c + NW, x - l / 4.0, y + l / 4.0, l / 2.0);
+            quadrant(c + NE, x + l / 4.0, y + l / 4.0, l / 2.0);
+            quadrant(c + SW, x - l / 4.0, y - l / 4.0, l / 2.0);
+            quadrant(c + SE, x + l / 4.0, y - l / 4.0, l / 2.0);
+
+            for (int k = 0; k < n[node]; k++)
+                putBody(node, bucket[node * bucketSize + k]);
+            putBody(node, i);
+            n[node] = 0;
+
+            aggregate(node, i);
+        }
+    }
+
+    private void quadrant(int node, double x, double y, double l) {
+        xmid[node] = x;
+        ymid[node] = y;
+        len[node] = l;
+        child[node] = -1;
+        n[node] = 0;
+    }
+
+    // adds the i-th body to the aggregate of node, as Body.plus()
+    private void aggregate(int node, int i) {
+        double mi = store.mass(i);
+        double m = mass[node] + mi;
+        cx[node] = (cx[node] * mass[node] + store.rx(i) * mi) / m;
+        cy[node] = (cy[node] * mass[node] + store.ry(i) * mi) / m;
+        mass[node] = m;
+    }
+
+    // inserts the i-th body into the child of node containing it
+    private void putBody(int node, int i) {
+        double x = store.rx(i), y = store.ry(i);
+        int c = child[node];
+        if (contains(c + NW, x, y))
+            insert(c + NW, i);
+        else if (contains(c + NE, x, y))
+            insert(c + NE, i);
+        else if (contains(c + SE, x, y))
+            insert(c + SE, i);
+        else if (contains(c + SW, x, y))
+            insert(c + SW, i);
+    }
+
+    /**
+     * Approximates the net force acting on the i-th body from all the
+     * bodies of the tree and adds it to its force, as BHTree.updateForce().
+     */
+    public void updateForce(int i) {
+        updateForce(0, i);
+    }
+
+    private void updateForce(int node, int i) {
+        if (isEmpty(node))
+            return;
+
+        if (child[node] < 0) {
+            for (int k = 0; k < n[node]; k++) {
+                int j = bucket[node * bucketSize + k];
+                if (j != i)
+                    store.addForce(i, store.mass(j), store.rx(j), store.ry(j));
+            }
+        }
+        else {
+            double dx = cx[node] - store.rx(i);
+            double dy = cy[node] - store.ry(i);
+            double d = Math.sqrt(dx*dx + dy*dy);
+            if ((len[node] / d) < Theta)
+                store.addForce(i, mass[node], cx[node], cy[node]);
+            else {
+                int c = child[node];
+                updateForce(c + NW, i);
+                updateForce(c + NE, i);
+                updateForce(c + SW, i);
+                updateForce(c + SE, i);
+            }
+        }
+    }
+
+    /**
+     * Approximates the net force acting on every body of the tree and adds
+     * it to their forces, with one walk per external node as
+     * BHTree.updateForces().
+     */
+    public void updateForces() {
+        updateForces(0);
+    }
+
+    private void updateForces(int node) {
+        if (isEmpty(node))
+            return;
+
+        if (child[node] >= 0) {
+            int c = child[node];
+            updateForces(c + NW);
+            updateForces(c + NE);
+            updateForces(c + SW);
+            updateForces(c + SE);
+            return;
+        }
+
+        // bounding box of the bodies in the bucket
+        int first = node * bucketSize;
+        double xlo = store.rx(bucket[first]), xhi = xlo;
+        double ylo = store.ry(bucket[first]), yhi = ylo;
+        for (int k = 1; k < n[node]; k++) {
+            double x = store.rx(bucket[first + k]);
+            double y = store.ry(bucket[first + k]);
+            xlo = Math.min(xlo, x);
+            xhi = Math.max(xhi, x);
+            ylo = Math.min(ylo, y);
+            yhi = Math.max(yhi, y);
+        }
+
+        // one interaction list for the whole bucket
+        ln = 0;
+        interactions(0, node, xlo, xhi, ylo, yhi);
+
+        for (int k = 0; k < n[node]; k++) {
+            int i = bucket[first + k];
+            store.addForces(i, lm, lx, ly, ln);
+
+            // bodies sharing the bucket interact directly
+            for (int l = 0; l < n[node]; l++) {
+                int j = bucket[first + l];
+                if (l != k)
+                    store.addForce(i, store.mass(j), store.rx(j), store.ry(j));
+            }
+        }
+    }
+
+    // adds to the interaction list the bodies and aggregates acting on every
+    // body of the external node leaf, whose bounding box is [xlo, xhi] x [ylo, yhi]
+    private void interactions(int node, int leaf, double xlo, double xhi, double ylo, double yhi) {
+        if (isEmpty(node) || node == leaf)
+            return;
+
+        double s = len[node];
+        double dx = Math.max(0.0, Math.max(xlo - cx[node], cx[node] - xhi));
+        double dy = Math.max(0.0, Math.max(ylo - cy[node], cy[node] - yhi));
+
+        if (s*s < Theta*Theta * (dx*dx + dy*dy))
+            add(mass[node], cx[node], cy[node]);
+        else if (child[node] < 0) {
+            for (int k = 0; k < n[node]; k++) {
+                int j = bucket[node * bucketSize + k];
+                add(store.mass(j), store.rx(j), store.ry(j));
+            }
+        }
+        else {
+            int c = child[node];
+            interactions(c + NW, leaf, xlo, xhi, ylo, yhi);
+            interactions(c + NE, leaf, xlo, xhi, ylo, yhi);
+            interactions(c + SW, leaf, xlo, xhi, ylo, yhi);
+            interactions(c + SE, leaf, xlo, xhi, ylo, yhi);
+        }
+    }
+
+    private void add(double m, double x, double y) {
+        if (ln == lm.length) {
+            lm = Arrays.copyOf(lm, 2 * ln);
+            lx = Arrays.copyOf(lx, 2 * ln);
+            ly = Arrays.copyOf(ly, 2 * ln);
+        }
+        lm[ln] = m;
+        lx[ln] = x;
+        ly[ln] = y;
+        ln++;
+    }
+}
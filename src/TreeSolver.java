@@ -0,0 +1,80 @@
+import java.util.ArrayList;
+
+/**
+ * Barnes-Hut force solver: builds a BHTree over a fixed root quadrant
+ * and walks it once per leaf bucket.
+ */
+public class TreeSolver implements ForceSolver {
+
+    private final Quad quad;         // root quadrant of the trees
+    private final int bucketSize;    // bodies per leaf of the trees
+    private BHTree tree;             // tree of the last force computation, rebuilt in place
+    private StoreTree storeTree;     // same for the bodies of a store
+    private final ArrayList<Body> interactions = new ArrayList<Body>();   // reused across computations
+
+    /**
+     * Constructor: creates a solver building its trees over quadrant quad.
+     *
+     * @param quad       the root quadrant
+     * @param bucketSize the maximum number of bodies in a leaf
+     */
+    public TreeSolver(Quad quad, int bucketSize) {
+        this.quad = quad;
+        this.bucketSize = bucketSize;
+    }
+
+    public void computeForces(Body[] bodies) {
+        if (tree == null)
+            tree = new BHTree(quad, bucketSize);
+        else
+            tree.clear();
+
+        // build the Barnes-Hut tree
+        for (Body b : bodies)
+            if (b.in(quad))
+                tree.insert(b);
+
+        // update the forces (one tree walk per leaf bucket)
+        for (Body b : bodies)
+            b.resetForce();
+        tree.updateForces(interactions);
+
+        // bodies outside of the tree still feel its attraction
+        for (Body b : bodies)
+            if (!b.in(quad))
+                tree.updateForce(b);
+    }
+
+    public void computeForces(BodyStore store) {
+        if (storeTree == null || storeTree.store() != store)
+            storeTree = new StoreTree(store, quad, bucketSize);
+        else
+            storeTree.clear();
+
+        // build the Barnes-Hut tree
+        int n = store.size();
+        for (int i = 0; i < n; i++)
+            if (quad.contains(store.rx(i), store.ry(i)))
+                storeTree.insert(i);
+
+        // update the forces (one tree walk per leaf bucket)
+        for (int i = 0; i < n; i++)
+            store.resetForce(i);
+        storeTree.updateForces();
+
+        // bodies outside of the tree still feel its attraction
+        for (int i = 0; i < n; i++)
+            if (!quad.contains(store.rx(i), store.ry(i)))
+                storeTree.updateForce(i);
+    }
+
+    /**
+     * Returns the tree built by the last call to computeForces(), null before.
+     * The next call rebuilds it in place.
+     *
+     * @return the last Barnes-Hut tree
+     */
+    public BHTree tree() {
+        return tree;
+    }
+}